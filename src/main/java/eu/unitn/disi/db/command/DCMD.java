@@ -19,15 +19,56 @@ package eu.unitn.disi.db.command;
 
 import eu.unitn.disi.db.command.global.ConsoleHandler;
 import static eu.unitn.disi.db.command.global.ConsoleHandler.getInstance;
+import eu.unitn.disi.db.command.util.ClassDataSharing;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 /**
- * This command console allows the dynamic loading of commands. 
+ * This command console allows the dynamic loading of commands.
+ * <p>
+ * Run with --dump-archive ARCHIVE [BATCH] to create a class data sharing
+ * archive from a training run of the console (that optionally executes the
+ * BATCH file), then start the console with -XX:SharedArchiveFile=ARCHIVE.
  * @author Davide Mottin <mottin@disi.unitn.eu>
  */
 public class DCMD {
-        
-    public static void main(String[] argss) {        
+    private static final String DUMP_ARCHIVE = "--dump-archive";
+    private static final String TRAIN = "--train";
+
+    public static void main(String[] argss) {
+        if (argss.length > 0 && DUMP_ARCHIVE.equals(argss[0])) {
+            System.exit(dumpArchive(Arrays.copyOfRange(argss, 1, argss.length)));
+        }
         ConsoleHandler handler = getInstance();
+        if (argss.length > 0 && TRAIN.equals(argss[0])) {
+            handler.runTraining(argss.length > 1 ? argss[1] : null);
+            System.exit(0);
+        }
         handler.runConsole();
     }
+
+    private static int dumpArchive(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: " + DUMP_ARCHIVE + " ARCHIVE [BATCH]");
+            return 1;
+        }
+        Path archive = Paths.get(args[0]);
+        try {
+            int exitCode = args.length > 1
+                    ? ClassDataSharing.dumpArchive(archive, DCMD.class.getName(), TRAIN, args[1])
+                    : ClassDataSharing.dumpArchive(archive, DCMD.class.getName(), TRAIN);
+            if (exitCode == 0) {
+                System.out.printf("Archive %s created, start the console with %s\n", archive,
+                        String.join(" ", ClassDataSharing.runtimeOptions(archive)));
+            }
+            return exitCode;
+        } catch (IOException ex) {
+            System.err.println("Cannot create the archive: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return 1;
+    }
 }
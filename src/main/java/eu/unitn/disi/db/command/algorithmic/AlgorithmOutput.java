@@ -18,10 +18,17 @@
 
 package eu.unitn.disi.db.command.algorithmic;
 
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
 /**
  *
  * @author Davide Mottin <mottin@disi.unitn.eu>
  */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
 public @interface AlgorithmOutput {
     public String description() default "";
 }
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.algorithmic;
+
+import eu.unitn.disi.db.command.exceptions.AlgorithmExecutionException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A composite algorithm made of stages connected without glue code: each
+ * {@link AlgorithmInput} field of a stage is filled with the
+ * {@link AlgorithmOutput} field of an earlier stage with the same name and a
+ * compatible type. A stage starts as soon as the stages it takes inputs from
+ * complete, so independent branches run in parallel on a fork-join pool. The
+ * time of each stage is measured by its own timer.
+ * <pre>
+ * Pipeline experiment = new Pipeline()
+ *     .add(new LoadGraph())          //output: graph
+ *     .add(new PageRank())           //input: graph, output: ranking
+ *     .add(new Communities())        //input: graph, output: clusters
+ *     .add(new Evaluate());          //input: ranking, clusters
+ * experiment.compute();
+ * </pre>
+ * The inputs that no stage produces keep the value set on the stage. The
+ * fields declared by {@link Algorithm} (limits and flags) are not connected.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+public class Pipeline extends Algorithm {
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+
+    /*
+     * The annotated fields of each class, resolved once: commands reloaded
+     * from a new jar are new classes, so the old entries can be collected
+     */
+    private static final ClassValue<Ports> PORTS = new ClassValue<Ports>() {
+        @Override
+        protected Ports computeValue(Class<?> type) {
+            return new Ports(type);
+        }
+    };
+
+    /*
+     * An input or output field, with its accessor
+     */
+    private static final class Port {
+        private final String name;
+        private final Class<?> type;
+        private final boolean mandatory;
+        private final MethodHandle accessor;
+
+        private Port(Field field, boolean mandatory, MethodHandle accessor) {
+            this.name = field.getName();
+            this.type = wrap(field.getType());
+            this.mandatory = mandatory;
+            this.accessor = accessor;
+        }
+    }
+
+    private static final class Ports {
+        private final Map<String, Port> inputs = new LinkedHashMap<>();
+        private final Map<String, Port> outputs = new LinkedHashMap<>();
+
+        private Ports(Class<?> type) {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            AlgorithmInput input;
+            for (Class<?> c = type; c != null && c != Algorithm.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    try {
+                        input = field.getAnnotation(AlgorithmInput.class);
+                        if (input != null && !inputs.containsKey(field.getName())) {
+                            field.setAccessible(true);
+                            inputs.put(field.getName(), new Port(field, input.mandatory(), lookup.unreflectSetter(field).asType(SETTER)));
+                        }
+                        if (field.isAnnotationPresent(AlgorithmOutput.class) && !outputs.containsKey(field.getName())) {
+                            field.setAccessible(true);
+                            outputs.put(field.getName(), new Port(field, false, lookup.unreflectGetter(field).asType(GETTER)));
+                        }
+                    } catch (IllegalAccessException | RuntimeException ex) {
+                        throw new IllegalStateException(String.format("Cannot access the field %s of %s", field.getName(), c.getName()), ex);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * An input of a stage filled with the output of another stage
+     */
+    private static final class Link {
+        private final Stage from;
+        private final Port output;
+        private final Port input;
+
+        private Link(Stage from, Port output, Port input) {
+            this.from = from;
+            this.output = output;
+            this.input = input;
+        }
+    }
+
+    private static final class Stage {
+        private final String name;
+        private final Algorithm algorithm;
+        private final List<Link> links = new ArrayList<>();
+        private final List<Stage> dependencies = new ArrayList<>();
+
+        private Stage(String name, Algorithm algorithm) {
+            this.name = name;
+            this.algorithm = algorithm;
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+    private final Map<Algorithm, Stage> added = new IdentityHashMap<>();
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * Add a stage named after its class
+     * @param algorithm The algorithm of the stage
+     * @return This pipeline
+     * @throws AlgorithmExecutionException If an input matches the outputs of
+     * several stages or a mandatory input is not produced nor set
+     */
+    public Pipeline add(Algorithm algorithm) throws AlgorithmExecutionException {
+        String name = algorithm.getClass().getSimpleName();
+        int n = 1;
+        for (Stage s : stages) {
+            if (s.algorithm.getClass() == algorithm.getClass()) {
+                n++;
+            }
+        }
+        return add(n > 1 ? name + "#" + n : name, algorithm);
+    }
+
+    /**
+     * Add a stage, connecting its inputs to the outputs of the stages added
+     * before it
+     * @param name The name of the stage, used in the reports
+     * @param algorithm The algorithm of the stage
+     * @return This pipeline
+     * @throws AlgorithmExecutionException If an input matches the outputs of
+     * several stages or a mandatory input is not produced nor set
+     */
+    public Pipeline add(String name, Algorithm algorithm) throws AlgorithmExecutionException {
+        Stage stage = new Stage(name, algorithm), producer;
+        Port output;
+        if (algorithm == this || added.containsKey(algorithm)) {
+            throw new AlgorithmExecutionException("Algorithm %s is already a stage of the pipeline", name);
+        }
+        for (Port input : PORTS.get(algorithm.getClass()).inputs.values()) {
+            producer = null;
+            output = null;
+            for (Stage s : stages) {
+                Port candidate = PORTS.get(s.algorithm.getClass()).outputs.get(input.name);
+                if (candidate != null && input.type.isAssignableFrom(candidate.type)) {
+                    if (producer != null) {
+                        throw new AlgorithmExecutionException("Input %s of %s is produced by both %s and %s", input.name, name, producer.name, s.name);
+                    }
+                    producer = s;
+                    output = candidate;
+                }
+            }
+            if (producer != null) {
+                stage.links.add(new Link(producer, output, input));
+                if (!stage.dependencies.contains(producer)) {
+                    stage.dependencies.add(producer);
+                }
+            } else if (input.mandatory && isNull(algorithm, input)) {
+                throw new AlgorithmExecutionException("Mandatory input %s of %s is not produced by any stage", input.name, name);
+            }
+        }
+        stages.add(stage);
+        added.put(algorithm, stage);
+        return this;
+    }
+
+    private static boolean isNull(Algorithm algorithm, Port input) throws AlgorithmExecutionException {
+        try {
+            Field field = field(algorithm.getClass(), input.name);
+            field.setAccessible(true);
+            return field.get(algorithm) == null;
+        } catch (ReflectiveOperationException ex) {
+            throw new AlgorithmExecutionException("Cannot read the input %s of %s", ex, input.name, algorithm.getClass().getName());
+        }
+    }
+
+    private static Field field(Class<?> type, String name) throws NoSuchFieldException {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            try {
+                return c.getDeclaredField(name);
+            } catch (NoSuchFieldException ex) {
+                //Declared by a superclass
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+
+    /**
+     * Run the stages: a stage starts when the stages it depends on complete
+     * and stages failing (or interrupted, or out of memory) make their
+     * dependents fail
+     * @throws AlgorithmExecutionException If a stage fails
+     * @throws InterruptedException If interrupted while the stages run, the
+     * running stages are interrupted and the others are not started
+     */
+    @Override
+    protected void algorithm() throws AlgorithmExecutionException, InterruptedException {
+        Map<Stage, CompletableFuture<Void>> running = new IdentityHashMap<>();
+        Map<Stage, Thread> active = new IdentityHashMap<>();
+        AtomicBoolean stopped = new AtomicBoolean();
+        CompletableFuture<Void> all;
+        for (Stage stage : stages) {
+            CompletableFuture<?>[] dependencies = new CompletableFuture<?>[stage.dependencies.size()];
+            for (int i = 0; i < dependencies.length; i++) {
+                dependencies[i] = running.get(stage.dependencies.get(i));
+            }
+            running.put(stage, CompletableFuture.allOf(dependencies).thenRunAsync(() -> run(stage, active, stopped), pool));
+        }
+        all = CompletableFuture.allOf(running.values().toArray(new CompletableFuture<?>[running.size()]));
+        try {
+            all.get();
+        } catch (InterruptedException ex) {
+            //Cancelling a future does not interrupt its stage, the threads are interrupted
+            synchronized (active) {
+                stopped.set(true);
+                for (Thread thread : active.values()) {
+                    thread.interrupt();
+                }
+            }
+            for (CompletableFuture<Void> stage : running.values()) {
+                stage.cancel(false);
+            }
+            throw ex;
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            while (cause instanceof java.util.concurrent.CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof StageException) {
+                throw ((StageException) cause).error;
+            }
+            throw new AlgorithmExecutionException(cause);
+        }
+    }
+
+    /*
+     * Carries the error of a stage through the futures
+     */
+    private static final class StageException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final AlgorithmExecutionException error;
+
+        private StageException(AlgorithmExecutionException error) {
+            super(error);
+            this.error = error;
+        }
+    }
+
+    private static void run(Stage stage, Map<Stage, Thread> active, AtomicBoolean stopped) {
+        Object value;
+        for (Link link : stage.links) {
+            try {
+                value = (Object) link.output.accessor.invokeExact((Object) link.from.algorithm);
+                link.input.accessor.invokeExact((Object) stage.algorithm, value);
+            } catch (Throwable ex) {
+                throw new StageException(new AlgorithmExecutionException("Cannot pass %s from %s to %s", ex,
+                        link.input.name, link.from.name, stage.name));
+            }
+        }
+        synchronized (active) {
+            if (stopped.get()) {
+                throw new StageException(new AlgorithmExecutionException("Stage %s not started, the pipeline has been interrupted", stage.name));
+            }
+            active.put(stage, Thread.currentThread());
+        }
+        try {
+            stage.algorithm.compute();
+        } catch (AlgorithmExecutionException ex) {
+            throw new StageException(new AlgorithmExecutionException("Stage %s failed", ex, stage.name));
+        } finally {
+            synchronized (active) {
+                active.remove(stage);
+                //The interrupt of the pipeline must not reach the next task of the pool thread
+                Thread.interrupted();
+            }
+        }
+        //compute() does not throw when the stage stops early, its outputs are not complete
+        if (stage.algorithm.isInterrupted()) {
+            throw new StageException(new AlgorithmExecutionException("Stage %s has been interrupted", stage.name));
+        }
+        if (stage.algorithm.isMemoryExhausted()) {
+            throw new StageException(new AlgorithmExecutionException("Stage %s exhausted the memory", stage.name));
+        }
+    }
+
+    /**
+     * Run the stages on a pool other than the common fork-join pool
+     * @param pool The pool
+     * @return This pipeline
+     */
+    public Pipeline setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * The time of each stage in the last run, in the order they were added
+     * @return A map from the names of the stages to their time in milliseconds
+     */
+    public Map<String, Long> getStageTimes() {
+        Map<String, Long> times = new LinkedHashMap<>();
+        for (Stage stage : stages) {
+            times.put(stage.name, stage.algorithm.getComputationTime());
+        }
+        return times;
+    }
+
+    /**
+     * The connections between the stages, e.g., to check the wiring
+     * @return For each stage, the inputs with the stage producing them
+     */
+    public Map<String, Map<String, String>> getConnections() {
+        Map<String, Map<String, String>> connections = new LinkedHashMap<>();
+        Map<String, String> inputs;
+        for (Stage stage : stages) {
+            inputs = new LinkedHashMap<>();
+            for (Link link : stage.links) {
+                inputs.put(link.input.name, link.from.name);
+            }
+            connections.put(stage.name, Collections.unmodifiableMap(inputs));
+        }
+        return connections;
+    }
+
+    private static Class<?> wrap(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return type;
+        }
+        return MethodType.methodType(type).wrap().returnType();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import eu.unitn.disi.db.command.PositionalInput;
+import eu.unitn.disi.db.command.exceptions.ExecutionException;
+import eu.unitn.disi.db.command.util.OffHeapStore;
+import eu.unitn.disi.db.command.util.SharedRegion;
+import java.io.IOException;
+
+/**
+ * Attach a region published by another process into a variable
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+@ConsoleCommand(name = "attach")
+public class Attach extends Command {
+    private String variable;
+    private String region;
+
+    @Override
+    protected void execute() throws ExecutionException {
+        ExecutionService global = ExecutionService.getInstance();
+        if (global.hasObject(variable)) {
+            warn("Overriding an existing object");
+        }
+        try {
+            OffHeapStore store = SharedRegion.attach(region);
+            global.setObject(variable, store, null, String.format("attach %s %s", variable, region));
+            global.out().printf("Attached region %s (%d bytes) to %s\n", region, store.capacity(), variable);
+        } catch (IOException | IllegalArgumentException ex) {
+            throw new ExecutionException("Cannot attach region %s, message: %s", ex, region, ex.getMessage());
+        }
+    }
+
+    @Override
+    protected String commandDescription() {
+        return "Attach a shared region published by another process (read-only)";
+    }
+
+    @PositionalInput(
+        description = "the name of the variable to be stored and used (for convention better start with $[variablename]",
+        name = "variable",
+        position = 1
+    )
+    public void setVariable(String variable) {
+        this.variable = variable;
+    }
+
+    @PositionalInput(
+        description = "the name of the shared region",
+        name = "region",
+        position = 2
+    )
+    public void setRegion(String region) {
+        this.region = region;
+    }
+}
@@ -22,72 +22,541 @@ import eu.unitn.disi.db.command.CommandInput;
 import eu.unitn.disi.db.command.PositionalInput;
 import eu.unitn.disi.db.command.exceptions.ExecutionException;
 import static eu.unitn.disi.db.command.global.CommandRunner.QUITS;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
-import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import javax.script.ScriptException;
 
 /**
- * Load and execute a batch of commands from file
+ * Load and execute a batch of commands from file, a named pipe or the
+ * standard input (-), reading the lines as they are executed. With -p the
+ * exec lines run in parallel on a pool of workers, any other line (e.g., obj
+ * or jar) waits for the running commands and runs alone, as a barrier. A
+ * batch in the dag format declares the dependencies of each step instead.
+ * The completed lines are recorded in a journal next to the batch file, so
+ * that a batch that died can be resumed with -resume. A line can sweep
+ * parameters, e.g., -k {1..100} -eps {0.1,0.01}: it runs once for each
+ * combination of the values. A .dcmd batch is a script with variables,
+ * loops and conditionals (see {@link BatchScript}). With -fork the exec lines
+ * run in separate worker JVMs, each loading the same jars and objects, and
+ * the lines of a crashed worker are run again on a new one. With -cached
+ * the results of the commands are stored on disk and the commands already
+ * computed with the same jar and objects are not run again (see
+ * {@link ResultCache}).
  * @author Davide Mottin <mottin@disi.unitn.eu>
  */
 @ConsoleCommand(
         name = "batch"
 )
 public class Batch extends Command {
+    private static final Set<String> PARALLEL_COMMANDS = new HashSet<>(Arrays.asList("exec"));
+    private static final Object SKIPPED = new Object();
+    private static final String DAG_EXTENSION = ".dag";
+    private static final int QUEUED_PER_WORKER = 2;
+    private static final String OBJ = "obj";
     private String batchFile;
     private boolean stop; 
+    private int workers;
+    private int forks;
+    private String jvmArgs;
+    private boolean dag;
+    private boolean follow;
+    private boolean resume;
+    private String sync;
+    private volatile BatchJournal journal;
+    private Map<String, Line> deferred;
+    private int resumed;
+    private long sample;
+    private long seed;
+    private int failed;
+    private int cancelled;
+    private volatile boolean stopped;
+    private BatchWorkers processes;
+    private List<String> workerPreamble;
+    private boolean cached;
+    private long cacheSize;
+    private int cacheAge;
+    private ResultCache cache;
+    private final AtomicInteger cacheHits = new AtomicInteger();
+    
+    /*
+     * A line to be executed, with its number in the batch (number.position
+     * for the invocations of a sweep)
+     */
+    private static final class Line {
+        private final String number;
+        private final String text;
+        private final String[] command;
+
+        private Line(String number, String text) {
+            this.number = number;
+            this.text = text;
+            this.command = ExecutionService.tokenizeCommand(text);
+        }
+
+        private String name() {
+            return command.length > 0 ? command[0].toLowerCase() : "";
+        }
+    }
     
     @Override
     protected void execute() throws ExecutionException {
-        Path p;
-        List<String> lines; 
-        String[] tokenizedCommand; 
-        ExecutionService global = ExecutionService.getInstance();
-        Object retval;
-        p = FileSystems.getDefault().getPath(batchFile);
-        
-        
-        try {
-            if (batchFile.endsWith(".js")) {
-                ScriptEngineManager manager = new ScriptEngineManager();
-                ScriptEngine engine = manager.getEngineByExtension("js");
-                
-                try (FileReader reader = new FileReader(batchFile)) {
-                    engine.eval(reader);
-                    lines = (List<String>) engine.get("commands");
+        boolean graph = dag || batchFile.endsWith(DAG_EXTENSION);
+        if (batchFile.endsWith(BatchScript.EXTENSION)) {
+            runScript();
+            return;
+        }
+        //The workers start from the state of the console, refused if it cannot be rebuilt
+        workerPreamble = forks > 0 && !graph ? BatchWorkers.consoleState() : null;
+        resumed = 0;
+        deferred = new HashMap<>();
+        cache = openCache();
+        cacheHits.set(0);
+        //The lines are read while the batch runs, never all at once
+        try (BatchInput lines = batchFile.endsWith(".js") ? BatchInput.script(batchFile) : BatchInput.open(batchFile, follow);
+                BatchJournal j = openJournal()) {
+            journal = j;
+            if (graph) {
+                if (forks > 0) {
+                    warn("The steps of a dag batch run in this console, -fork is ignored");
                 }
+                runGraph(lines);
+            } else if (workers > 1 || forks > 0 || cache != null) {
+                runParallel(lines(lines));
             } else {
-                lines = Files.readAllLines(p, Charset.defaultCharset());
+                runSequential(lines(lines));
+            }
+            lines.checkScript();
+            if (resume && journal != null && !graph) {
+                global().out().printf("Resumed batch: %d completed commands skipped, %d loads not needed\n", resumed, deferred.size());
             }
-            for (String line : lines) {
-                if (line != null) {
-                    line = line.trim();
-                    if(!QUITS.contains(line)){
+            if (cache != null) {
+                global().out().printf("%d results taken from the cache %s\n", cacheHits.get(), cache.getDirectory());
+            }
+        } catch (IOException | UncheckedIOException ex) {
+            error("Cannot read batch file %s", batchFile);
+        } catch (ScriptException ex) {
+            if (ex.getLineNumber() < 0) {
+                fatal("%s", ex.getMessage());
+            } else {
+                fatal("Javascript error in line: %d, column: %d, message: %s", ex.getLineNumber(), ex.getColumnNumber(), ex.getMessage());
+            }
+        } finally {
+            journal = null;
+            cache = null;
+        }
+    }
+
+    private ResultCache openCache() {
+        if (!cached) {
+            return null;
+        }
+        if (forks > 0) {
+            warn("The results of the worker processes are not cached, -cached is ignored");
+            return null;
+        }
+        try {
+            return ResultCache.open(cacheSize * 1024 * 1024, cacheAge * 24L * 3600 * 1000);
+        } catch (IOException ex) {
+            warn("Cannot open the result cache %s, message: %s", ResultCache.directory(), ex.getMessage());
+            return null;
+        }
+    }
+
+    private void runScript() throws ExecutionException {
+        BatchScript script;
+        long start = System.nanoTime();
+        try {
+            script = BatchScript.compile(new String(Files.readAllBytes(Paths.get(batchFile)), Charset.defaultCharset()));
+        } catch (IOException ex) {
+            throw new ExecutionException("Cannot read batch file %s", batchFile);
+        }
+        debug("Script %s compiled in %.2f ms", batchFile, (System.nanoTime() - start) / 1e6);
+        script.run(new BatchScript.Scope(stop));
+    }
+
+    private static ExecutionService global() {
+        return ExecutionService.getInstance();
+    }
+
+    /*
+     * The journal is kept next to batch files only, not for pipes or the
+     * standard input
+     */
+    private BatchJournal openJournal() throws IOException, ExecutionException {
+        Path path = Paths.get(batchFile);
+        BatchJournal.Sync policy;
+        if (BatchInput.STDIN.equals(batchFile) || !Files.isRegularFile(path)) {
+            if (resume) {
+                warn("Cannot resume %s, only batch files have a journal", batchFile);
+            }
+            return null;
+        }
+        try {
+            policy = BatchJournal.Sync.valueOf(sync.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new ExecutionException("Unknown fsync policy %s, use always, interval or never", sync);
+        }
+        if (resume && !Files.exists(path.resolveSibling(path.getFileName() + BatchJournal.EXTENSION))) {
+            warn("No journal found for %s, running it from the start", batchFile);
+        }
+        return BatchJournal.open(path, policy, resume);
+    }
+
+    /*
+     * Number the lines to be executed and expand the sweeps, one invocation
+     * at a time. Resuming, the exec lines completed in
+     * the previous run are skipped and the completed obj lines are deferred
+     * till a line to be executed uses their variable; other lines (e.g.,
+     * jar) are cheap and always executed again.
+     */
+    private Iterable<Line> lines(final Iterable<String> input) {
+        return () -> new Iterator<Line>() {
+            private final Iterator<String> source = input.iterator();
+            private final Deque<Line> ready = new ArrayDeque<>();
+            private Sweep.Expansion expansion;
+            private int number;
+
+            @Override
+            public boolean hasNext() {
+                while (ready.isEmpty()) {
+                    if (expansion != null && expansion.hasNext()) {
+                        String text = expansion.next();
+                        accept(new Line(number + "." + expansion.index(), text));
+                    } else if (source.hasNext()) {
+                        expansion = null;
+                        read(source.next());
+                    } else {
                         break;
                     }
-                    if (!"".equals(line) && !line.startsWith(ExecutionService.BATCH_COMMENT)) {
-                        tokenizedCommand = ExecutionService.tokenizeCommand(line);
-                        retval = global.runCommand(tokenizedCommand, true);
-                        if (stop && retval instanceof ExecutionService.CommandError) {
-                            break; 
+                }
+                return !ready.isEmpty();
+            }
+
+            @Override
+            public Line next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return ready.poll();
+            }
+
+            private void read(String l) {
+                String text;
+                number++;
+                if (l == null || "".equals(text = l.trim()) || text.startsWith(ExecutionService.BATCH_COMMENT)) {
+                    return;
+                }
+                if (Sweep.contains(text)) {
+                    try {
+                        Sweep sweep = Sweep.parse(text);
+                        if (sample > 0) {
+                            sweep.sample(sample, seed + number);
+                        }
+                        expansion = sweep.iterator();
+                    } catch (ExecutionException ex) {
+                        error("Line %d: %s", number, ex.getMessage());
+                    }
+                } else {
+                    accept(new Line(String.valueOf(number), text));
+                }
+            }
+
+            private void accept(Line line) {
+                Line load;
+                if (journal != null && journal.isCompleted(line.number, line.text)) {
+                    if (OBJ.equals(line.name()) && line.command.length > 1) {
+                        deferred.put(line.command[1], line);
+                        return;
+                    }
+                    if (PARALLEL_COMMANDS.contains(line.name())) {
+                        resumed++;
+                        return;
+                    }
+                }
+                if (!deferred.isEmpty()) {
+                    if (OBJ.equals(line.name()) && line.command.length > 1) {
+                        deferred.remove(line.command[1]);
+                    }
+                    for (String token : line.text.split("[\\s()]+")) {
+                        if ((load = deferred.remove(token)) != null) {
+                            ready.add(load);
                         }
                     }
                 }
+                ready.add(line);
+            }
+        };
+    }
+
+    /*
+     * Run a command and record its outcome in the journal
+     */
+    private Object journaled(String key, String text, Supplier<Object> command) {
+        long start = System.currentTimeMillis();
+        Object retval = command.get();
+        BatchJournal j = journal;
+        if (j != null) {
+            try {
+                j.record(key, text, !(retval instanceof ExecutionService.CommandError), System.currentTimeMillis() - start);
+            } catch (IOException ex) {
+                warn("Cannot write the journal %s, message: %s", j.getPath(), ex.getMessage());
+            }
+        }
+        return retval;
+    }
+
+    private void runSequential(Iterable<Line> lines) {
+        Object retval;
+        for (Line line : lines) {
+            if (QUITS.contains(line.text)) {
+                break;
+            }
+            retval = journaled(line.number, line.text, () -> global().runCommand(line.command, true));
+            if (stop && retval instanceof ExecutionService.CommandError) {
+                break; 
+            }
+        }
+    }
+
+    private void runGraph(Iterable<String> lines) throws ExecutionException {
+        ExecutionService global = ExecutionService.getInstance();
+        BatchGraph graph = BatchGraph.parse(lines);
+        PrintStream console = global.out(), stdout = System.out;
+        if (journal != null) {
+            graph.resume((BatchGraph.Step step) -> journal.isCompleted(step.getId(), step.getCommand()));
+        }
+        final ThreadOutput output = redirect(console);
+        try {
+            graph.run(workers > 1 ? workers : Runtime.getRuntime().availableProcessors(), stop, 
+                    (BatchGraph.Step step) -> journaled(step.getId(), step.getCommand(), 
+                            () -> runCached(ExecutionService.tokenizeCommand(step.getCommand()), step.getId(), output)), 
+                    console);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            System.setOut(stdout);
+            global.setOut(console);
+        }
+    }
+
+    /*
+     * Route the console output through a stream that can collect the output
+     * of each worker
+     */
+    private static ThreadOutput redirect(PrintStream console) {
+        ThreadOutput output = new ThreadOutput(console);
+        PrintStream routed = new PrintStream(output, true);
+        ExecutionService.getInstance().setOut(routed);
+        System.setOut(routed);
+        return output;
+    }
+
+    private void runParallel(Iterable<Line> lines) {
+        final ExecutionService global = ExecutionService.getInstance();
+        final AtomicInteger workerThreads = new AtomicInteger();
+        //Cached batches come here also with one worker (or -p 0)
+        final int threads = forks > 0 ? forks : Math.max(1, workers);
+        PrintStream console = global.out(), stdout = System.out;
+        if (forks > 0) {
+            try {
+                processes = BatchWorkers.start(forks, jvmArgs.trim().isEmpty() ? new ArrayList<>() : Arrays.asList(jvmArgs.trim().split("\\s+")), 
+                        workerPreamble, console);
+            } catch (IOException ex) {
+                error("Cannot start the worker processes, message: %s", ex.getMessage());
+                return;
+            }
+        }
+        final ThreadOutput output = redirect(console);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, (Runnable r) -> {
+            Thread t = new Thread(r, "batch-" + workerThreads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        CompletionService<Object> completion = new ExecutorCompletionService<>(pool);
+        Future<Object> done;
+        int running = 0;
+
+        failed = 0;
+        cancelled = 0;
+        stopped = false;
+        try {
+            for (Line line : lines) {
+                if (QUITS.contains(line.text) || (stop && failed > 0)) {
+                    break;
+                }
+                if (PARALLEL_COMMANDS.contains(line.name())) {
+                    final String tag = line.number;
+                    if (running >= threads * QUEUED_PER_WORKER) {
+                        //Do not read ahead of the workers
+                        check(completion.take());
+                        running--;
+                    }
+                    completion.submit(() -> stopped ? SKIPPED : journaled(tag, line.text, () -> processes != null 
+                            ? runForked(line.text, tag) : runCached(line.command, tag, output)));
+                    running++;
+                } else {
+                    //Barrier: wait for the running commands
+                    running = collect(completion, running);
+                    if (stop && failed > 0) {
+                        break;
+                    }
+                    //The worker processes prepare their own console
+                    if (journaled(line.number, line.text, () -> processes != null 
+                            ? processes.broadcast(line.text, line.number) : global.runCommand(line.command, true)) instanceof ExecutionService.CommandError) {
+                        failed();
+                    }
+                }
+                while ((done = completion.poll()) != null) {
+                    running--;
+                    check(done);
+                }
+            }
+            collect(completion, running);
+        } catch (InterruptedException ex) {
+            stopped = true;
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+            System.setOut(stdout);
+            global.setOut(console);
+            if (processes != null) {
+                processes.close();
+                processes = null;
+            }
+        }
+        if (failed > 0 || cancelled > 0) {
+            console.printf("Batch completed with %d failed and %d cancelled commands\n", failed, cancelled);
+        }
+    }
+
+    /*
+     * Run a command collecting its output, then print it tagged with the line
+     * number or the step
+     */
+    private static Object runCollected(String[] command, String tag, ThreadOutput output) {
+        output.begin();
+        try {
+            return ExecutionService.getInstance().runCommand(command, true);
+        } finally {
+            print(output.getDelegate(), tag, output.end());
+        }
+    }
+
+    private static void print(PrintStream out, String tag, String text) {
+        if (!text.isEmpty()) {
+            synchronized (out) {
+                for (String outputLine : text.split("\r?\n")) {
+                    out.printf("[%s] %s\n", tag, outputLine);
+                }
             }
+        }
+    }
+
+    /*
+     * Print the cached output of the command or run it and store its output
+     * if it succeeds. The key of an exec line is the one of the executed 
+     * command.
+     */
+    private Object runCached(String[] command, String tag, ThreadOutput output) {
+        ResultCache c = cache;
+        String[] target = command.length > 1 && "exec".equalsIgnoreCase(command[0]) ? ExecutionService.tokenizeCommand(command[1]) : command;
+        String key = c != null ? ResultCache.key(target) : null, text;
+        ResultCache.Entry entry = null;
+        Object retval;
+        long start;
+        if (key == null) {
+            return runCollected(command, tag, output);
+        }
+        try {
+            entry = c.get(key);
         } catch (IOException ex) {
-            error("Cannot read batch file %s", batchFile);
-        } catch (ScriptException ex) {
-            ex.printStackTrace();
-            fatal("Javascript error in line: %d, column: %d, message: %s", ex.getLineNumber(), ex.getColumnNumber(), ex.getMessage());
-        } catch (NullPointerException ex) {
-            fatal("Malformed javascript: it must contain an ArrayList named 'commands' of string commands to be executed");
+            warn("Cannot read the cached result of %s, message: %s", tag, ex.getMessage());
+        }
+        if (entry != null) {
+            cacheHits.incrementAndGet();
+            text = entry.getOutput().isEmpty() || entry.getOutput().endsWith("\n") ? entry.getOutput() : entry.getOutput() + "\n";
+            print(output.getDelegate(), tag, String.format("%s(cached result of %s, computed in %d ms)", text, 
+                    new Date(entry.getCreated()), entry.getMillis()));
+            return entry;
+        }
+        output.begin();
+        start = System.currentTimeMillis();
+        try {
+            retval = ExecutionService.getInstance().runCommand(command, true);
+        } finally {
+            text = output.end();
+            print(output.getDelegate(), tag, text);
+        }
+        if (!(retval instanceof ExecutionService.CommandError)) {
+            try {
+                c.put(key, String.join(" ", target), text, System.currentTimeMillis() - start);
+            } catch (IOException ex) {
+                warn("Cannot cache the result of %s, message: %s", tag, ex.getMessage());
+            }
+        }
+        return retval;
+    }
+
+    private Object runForked(String text, String tag) {
+        try {
+            return processes.run(text, tag);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return ExecutionService.CommandError.ERROR;
+        }
+    }
+
+    private int collect(CompletionService<Object> completion, int running) throws InterruptedException {
+        for (; running > 0; running--) {
+            check(completion.take());
+        }
+        return running;
+    }
+
+    private void check(Future<Object> done) {
+        try {
+            Object retval = done.get();
+            if (retval == SKIPPED) {
+                cancelled++;
+            } else if (retval instanceof ExecutionService.CommandError) {
+                failed();
+            }
+        } catch (InterruptedException | java.util.concurrent.ExecutionException ex) {
+            failed();
+        }
+    }
+
+    /*
+     * With -s the commands not yet started are skipped
+     */
+    private void failed() {
+        failed++;
+        if (stop) {
+            stopped = true;
         }
     }
     
@@ -98,7 +567,7 @@ public class Batch extends Command {
 
     @PositionalInput(
             name = "batchFile",
-            description = "the input batch file",
+            description = "the input batch file (- for the standard input)",
             position = 1
     )
     public void setBatchFile(String batchFile) {
@@ -114,5 +583,125 @@ public class Batch extends Command {
     public void setStopExecution(boolean stop) {
         this.stop = stop; 
     }
+
+    @CommandInput(
+            consoleFormat = "-dag",
+            description = "Each line is a step 'id [dependencies] : command', steps run as soon as their dependencies complete (default for .dag files)", 
+            mandatory = false, 
+            defaultValue = "false"
+    )
+    public void setDag(boolean dag) {
+        this.dag = dag; 
+    }
+
+    @CommandInput(
+            consoleFormat = "-f",
+            description = "Follow the batch file: at its end wait for new lines till a quit line", 
+            mandatory = false, 
+            defaultValue = "false"
+    )
+    public void setFollow(boolean follow) {
+        this.follow = follow; 
+    }
+
+    @CommandInput(
+            consoleFormat = "-resume",
+            description = "Skip the commands completed in the previous run (see the .journal file), reload only the objects still needed", 
+            mandatory = false, 
+            defaultValue = "false"
+    )
+    public void setResume(boolean resume) {
+        this.resume = resume; 
+    }
+
+    @CommandInput(
+            consoleFormat = "-fsync",
+            description = "When the journal is forced to disk: always (each command), interval (at most once per second) or never", 
+            mandatory = false, 
+            defaultValue = "interval"
+    )
+    public void setSync(String sync) {
+        this.sync = sync; 
+    }
+
+    @CommandInput(
+            consoleFormat = "-sample",
+            description = "Run only N random invocations of each sweep line, in the same order (0 for all)", 
+            mandatory = false, 
+            defaultValue = "0"
+    )
+    public void setSample(long sample) {
+        this.sample = sample; 
+    }
+
+    @CommandInput(
+            consoleFormat = "-seed",
+            description = "Seed of the random samples, the same seed runs the same invocations", 
+            mandatory = false, 
+            defaultValue = "0"
+    )
+    public void setSeed(long seed) {
+        this.seed = seed; 
+    }
+
+    @CommandInput(
+            consoleFormat = "-p",
+            description = "Number of workers running the exec lines in parallel", 
+            mandatory = false, 
+            defaultValue = "1"
+    )
+    public void setWorkers(int workers) {
+        this.workers = workers; 
+    }
+
+    @CommandInput(
+            consoleFormat = "-fork",
+            description = "Number of worker JVMs running the exec lines, each loading the same jars and objects (0 to run them in this console)", 
+            mandatory = false, 
+            defaultValue = "0"
+    )
+    public void setForks(int forks) {
+        this.forks = forks; 
+    }
+
+    @CommandInput(
+            consoleFormat = "-jvmargs",
+            description = "Options of the worker JVMs, e.g., \"-Xmx4g -Xss8m\"", 
+            mandatory = false, 
+            defaultValue = ""
+    )
+    public void setJvmArgs(String jvmArgs) {
+        this.jvmArgs = jvmArgs; 
+    }
+
+    @CommandInput(
+            consoleFormat = "-cached",
+            description = "Take the results of the commands already run with the same jar and objects from the cache, store the new ones", 
+            mandatory = false, 
+            defaultValue = "false"
+    )
+    public void setCached(boolean cached) {
+        this.cached = cached; 
+    }
+
+    @CommandInput(
+            consoleFormat = "-cachesize",
+            description = "Maximum size of the result cache in MB, the least recently used results are pruned (0 for no limit)", 
+            mandatory = false, 
+            defaultValue = "1024"
+    )
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize; 
+    }
+
+    @CommandInput(
+            consoleFormat = "-cacheage",
+            description = "Prune the cached results not used for this number of days (0 to keep them)", 
+            mandatory = false, 
+            defaultValue = "0"
+    )
+    public void setCacheAge(int cacheAge) {
+        this.cacheAge = cacheAge; 
+    }
         
 }
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import eu.unitn.disi.db.command.exceptions.ExecutionException;
+import static eu.unitn.disi.db.command.global.CommandRunner.QUITS;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A batch whose steps declare the steps they depend on, one per line:
+ * <pre>
+ * id [dependency ...] : command
+ * </pre>
+ * Steps run as soon as their dependencies complete, the steps depending on
+ * a failed step are skipped.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+final class BatchGraph {
+    private static final String OBJ = "obj ";
+    private static final String EXEC = "exec ";
+
+    enum Status {
+        PENDING,
+        DONE,
+        FAILED,
+        SKIPPED,
+        RESUMED
+    }
+
+    static final class Step {
+        private final String id;
+        private final List<String> dependencies;
+        private final String command;
+        private final int line;
+        private final List<Step> dependents;
+        private int waiting;
+        private volatile long duration;
+        private volatile Status status;
+
+        private Step(String id, List<String> dependencies, String command, int line) {
+            this.id = id;
+            this.dependencies = dependencies;
+            this.command = command;
+            this.line = line;
+            this.dependents = new ArrayList<>();
+            this.status = Status.PENDING;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        String getCommand() {
+            return command;
+        }
+
+        Status getStatus() {
+            return status;
+        }
+    }
+
+    private final Map<String, Step> steps;
+    private final List<Step> order;
+
+    private BatchGraph(Map<String, Step> steps, List<Step> order) {
+        this.steps = steps;
+        this.order = order;
+    }
+
+    /**
+     * Parse the steps of a batch and check that they form a DAG
+     * @param lines The lines of the batch
+     * @return The graph of the steps
+     * @throws ExecutionException If a line is malformed, a dependency does
+     * not exist or the dependencies have a cycle
+     */
+    static BatchGraph parse(Iterable<String> lines) throws ExecutionException {
+        Map<String, Step> steps = new LinkedHashMap<>();
+        String[] header;
+        String line;
+        int number = 0, colon;
+
+        for (String l : lines) {
+            number++;
+            if (l == null || "".equals(line = l.trim()) || line.startsWith(ExecutionService.BATCH_COMMENT)) {
+                continue;
+            }
+            if (QUITS.contains(line)) {
+                break;
+            }
+            colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new ExecutionException("Line %d: expected 'id [dependencies] : command'", number);
+            }
+            header = line.substring(0, colon).trim().split("[\\s,]+");
+            if (steps.containsKey(header[0])) {
+                throw new ExecutionException("Line %d: step %s already defined", number, header[0]);
+            }
+            steps.put(header[0], new Step(header[0], Arrays.asList(header).subList(1, header.length), line.substring(colon + 1).trim(), number));
+        }
+        Step dependency;
+        for (Step step : steps.values()) {
+            for (String dep : step.dependencies) {
+                dependency = steps.get(dep);
+                if (dependency == null) {
+                    throw new ExecutionException("Line %d: step %s depends on the undefined step %s", step.line, step.id, dep);
+                }
+                dependency.dependents.add(step);
+            }
+        }
+        return new BatchGraph(steps, sort(steps));
+    }
+
+    /*
+     * Kahn's algorithm, fails on cycles
+     */
+    private static List<Step> sort(Map<String, Step> steps) throws ExecutionException {
+        Map<Step, Integer> waiting = new LinkedHashMap<>();
+        Deque<Step> ready = new ArrayDeque<>();
+        List<Step> order = new ArrayList<>(steps.size());
+        Step step;
+        int w;
+        for (Step s : steps.values()) {
+            waiting.put(s, s.dependencies.size());
+            if (s.dependencies.isEmpty()) {
+                ready.add(s);
+            }
+        }
+        while (!ready.isEmpty()) {
+            step = ready.poll();
+            order.add(step);
+            for (Step d : step.dependents) {
+                w = waiting.get(d) - 1;
+                waiting.put(d, w);
+                if (w == 0) {
+                    ready.add(d);
+                }
+            }
+        }
+        if (order.size() < steps.size()) {
+            List<String> cycle = new ArrayList<>();
+            for (Map.Entry<Step, Integer> entry : waiting.entrySet()) {
+                if (entry.getValue() > 0) {
+                    cycle.add(entry.getKey().id);
+                }
+            }
+            throw new ExecutionException("The dependencies of steps %s form a cycle", cycle);
+        }
+        return order;
+    }
+
+    /**
+     * Do not run again the exec steps completed in a previous run and the
+     * completed obj steps that no step still to run depends on. The other
+     * steps (e.g., jar) are always run again.
+     * @param completed True for the steps completed in a previous run
+     */
+    void resume(Predicate<Step> completed) {
+        Step step;
+        String command;
+        boolean needed;
+        for (int i = order.size() - 1; i >= 0; i--) {
+            step = order.get(i);
+            command = step.command.toLowerCase();
+            if (!(command.startsWith(EXEC) || command.startsWith(OBJ)) || !completed.test(step)) {
+                continue;
+            }
+            needed = false;
+            if (command.startsWith(OBJ)) {
+                for (Step d : step.dependents) {
+                    needed |= d.status != Status.RESUMED;
+                }
+            }
+            if (!needed) {
+                step.status = Status.RESUMED;
+            }
+        }
+    }
+
+    /**
+     * Run the steps on a pool of workers and print a summary
+     * @param workers The number of workers
+     * @param stop True to stop scheduling steps after the first failure
+     * @param runner Runs the command of a step and returns its result
+     * @param out Where to print the summary
+     * @throws InterruptedException If interrupted while waiting the steps
+     */
+    void run(int workers, boolean stop, Function<Step, Object> runner, PrintStream out) throws InterruptedException {
+        final AtomicInteger workerThreads = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, (Runnable r) -> {
+            Thread t = new Thread(r, "batch-" + workerThreads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        CompletionService<Step> completion = new ExecutorCompletionService<>(pool);
+        int running = 0;
+        boolean stopped = false;
+        long start = System.currentTimeMillis(), elapsed;
+        Step step;
+
+        try {
+            for (Step s : order) {
+                s.waiting = 0;
+                for (String d : s.dependencies) {
+                    if (steps.get(d).status != Status.RESUMED) {
+                        s.waiting++;
+                    }
+                }
+                if (s.waiting == 0 && s.status == Status.PENDING) {
+                    submit(completion, s, runner);
+                    running++;
+                }
+            }
+            while (running > 0) {
+                step = completion.take().get();
+                running--;
+                if (step.status == Status.FAILED) {
+                    skipDependents(step);
+                    stopped |= stop;
+                } else if (!stopped) {
+                    for (Step d : step.dependents) {
+                        if (--d.waiting == 0 && d.status == Status.PENDING) {
+                            submit(completion, d, runner);
+                            running++;
+                        }
+                    }
+                }
+            }
+        } catch (java.util.concurrent.ExecutionException ex) {
+            //Steps catch their own errors
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        elapsed = System.currentTimeMillis() - start;
+        for (Step s : order) {
+            if (s.status == Status.PENDING) {
+                s.status = Status.SKIPPED;
+            }
+        }
+        printSummary(elapsed, out);
+    }
+
+    private static void submit(CompletionService<Step> completion, final Step step, final Function<Step, Object> runner) {
+        completion.submit(() -> {
+            long start = System.currentTimeMillis();
+            Object retval;
+            try {
+                retval = runner.apply(step);
+            } catch (RuntimeException | Error ex) {
+                retval = ExecutionService.CommandError.ERROR;
+            }
+            step.duration = System.currentTimeMillis() - start;
+            step.status = retval instanceof ExecutionService.CommandError ? Status.FAILED : Status.DONE;
+            return step;
+        });
+    }
+
+    private static void skipDependents(Step failed) {
+        Deque<Step> queue = new ArrayDeque<>(failed.dependents);
+        Step step;
+        while (!queue.isEmpty()) {
+            step = queue.poll();
+            if (step.status == Status.PENDING) {
+                step.status = Status.SKIPPED;
+                queue.addAll(step.dependents);
+            }
+        }
+    }
+
+    /*
+     * The critical path is the longest chain of dependent steps, weighted
+     * with the measured durations: no schedule can be faster than it.
+     */
+    private void printSummary(long elapsed, PrintStream out) {
+        Map<Step, Long> finish = new LinkedHashMap<>();
+        Map<Step, Step> previous = new LinkedHashMap<>();
+        long serial = 0, end, criticalLength = 0;
+        int done = 0, failed = 0, skipped = 0, resumed = 0;
+        Step last = null, dep;
+
+        for (Step step : order) {
+            end = 0;
+            for (String d : step.dependencies) {
+                dep = steps.get(d);
+                if (finish.get(dep) > end) {
+                    end = finish.get(dep);
+                    previous.put(step, dep);
+                }
+            }
+            if (step.status == Status.DONE || step.status == Status.FAILED) {
+                end += step.duration;
+                serial += step.duration;
+            }
+            finish.put(step, end);
+            if (end >= criticalLength) {
+                criticalLength = end;
+                last = step;
+            }
+            switch (step.status) {
+                case DONE:
+                    done++;
+                    break;
+                case FAILED:
+                    failed++;
+                    break;
+                case RESUMED:
+                    resumed++;
+                    break;
+                default:
+                    skipped++;
+            }
+        }
+        List<String> path = new ArrayList<>();
+        for (Step s = last; s != null; s = previous.get(s)) {
+            path.add(s.id);
+        }
+        Collections.reverse(path);
+        out.printf("Batch completed: %d steps done, %d failed, %d skipped%s in %d ms\n", done, failed, skipped,
+                resumed > 0 ? String.format(", %d completed in a previous run", resumed) : "", elapsed);
+        out.printf("Serial time %d ms, critical path %d ms (%s)\n", serial, criticalLength, String.join(" -> ", path));
+        out.printf("Speedup %.2f (at most %.2f with unlimited workers)\n",
+                elapsed > 0 ? (double) serial / elapsed : 1.0,
+                criticalLength > 0 ? (double) serial / criticalLength : 1.0);
+    }
+
+    int size() {
+        return steps.size();
+    }
+}
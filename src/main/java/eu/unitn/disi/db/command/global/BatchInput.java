@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+/**
+ * The lines of a batch, read one at a time while the batch runs: a file, a
+ * named pipe, the standard input (-) or the commands produced by a
+ * javascript. Following a file, the end of the file waits for new lines
+ * (till a quit line ends the batch), so that a producer can append commands
+ * to a running batch. Can be iterated once.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+final class BatchInput implements Iterable<String>, Closeable {
+    static final String STDIN = "-";
+    private static final long FOLLOW_INTERVAL = 200;
+    private static final int SCRIPT_BUFFER = 1024;
+    private static final String END = new String("end of the script");
+
+    private final BufferedReader reader;
+    private final boolean closeReader;
+    private final boolean follow;
+    private final BlockingQueue<String> script;
+    private final StringBuilder partial = new StringBuilder();
+    private volatile ScriptException scriptError;
+    private volatile Thread producer;
+    private boolean iterated;
+
+    private BatchInput(BufferedReader reader, boolean closeReader, boolean follow, BlockingQueue<String> script) {
+        this.reader = reader;
+        this.closeReader = closeReader;
+        this.follow = follow;
+        this.script = script;
+    }
+
+    /**
+     * Open a batch file, a named pipe or the standard input
+     * @param source The path of the batch or - for the standard input
+     * @param follow True to wait for new lines at the end of the input
+     * @return The input
+     * @throws IOException If the file cannot be opened
+     */
+    static BatchInput open(String source, boolean follow) throws IOException {
+        BufferedReader in = STDIN.equals(source)
+                ? new BufferedReader(new InputStreamReader(System.in, Charset.defaultCharset()))
+                : Files.newBufferedReader(Paths.get(source), Charset.defaultCharset());
+        return new BatchInput(in, !STDIN.equals(source), follow, null);
+    }
+
+    /**
+     * Run a javascript producing the commands, either calling
+     * <code>emit(command)</code> for each command or filling a list named
+     * <code>commands</code>. The script runs in background and blocks when the
+     * batch is behind, so the emitted commands are never all in memory.
+     * @param file The javascript file
+     * @return The input
+     * @throws IOException If the file cannot be opened
+     * @throws ScriptException If there is no javascript engine
+     */
+    static BatchInput script(String file) throws IOException, ScriptException {
+        final ScriptEngine engine = new ScriptEngineManager().getEngineByExtension("js");
+        if (engine == null) {
+            throw new ScriptException(String.format("No javascript engine in java %s (removed in java 15), write the batch as a %s script",
+                    System.getProperty("java.specification.version"), BatchScript.EXTENSION));
+        }
+        final BufferedReader source = Files.newBufferedReader(Paths.get(file), Charset.defaultCharset());
+        final BatchInput input = new BatchInput(null, false, false, new ArrayBlockingQueue<>(SCRIPT_BUFFER));
+        engine.put("emit", (Consumer<Object>) (Object command) -> input.put(String.valueOf(command)));
+        input.producer = new Thread(() -> {
+            try (Reader r = source) {
+                engine.eval(r);
+                Object commands = engine.get("commands");
+                if (commands instanceof List) {
+                    for (Object command : (List<?>) commands) {
+                        input.put(String.valueOf(command));
+                    }
+                }
+            } catch (ScriptException ex) {
+                input.scriptError = ex;
+            } catch (IOException | RuntimeException ex) {
+                input.scriptError = new ScriptException(ex.getMessage());
+            } finally {
+                //The batch may be gone, do not wait for it
+                input.script.offer(END);
+            }
+        }, "batch-script");
+        input.producer.setDaemon(true);
+        input.producer.start();
+        return input;
+    }
+
+    private void put(String line) {
+        try {
+            script.put(line);
+        } catch (InterruptedException ex) {
+            //Batch closed, stop the script
+            throw new IllegalStateException("Batch interrupted");
+        }
+    }
+
+    /**
+     * The error of the javascript, if any, to be checked after the batch
+     * @throws ScriptException If the script failed
+     */
+    void checkScript() throws ScriptException {
+        if (scriptError != null) {
+            throw scriptError;
+        }
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        if (iterated) {
+            throw new IllegalStateException("A batch input can be iterated once");
+        }
+        iterated = true;
+        return new Iterator<String>() {
+            private String next;
+            private boolean ended;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !ended) {
+                    try {
+                        next = script != null ? take() : readLine();
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    ended = next == null;
+                }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String line = next;
+                next = null;
+                return line;
+            }
+        };
+    }
+
+    private String take() throws InterruptedException {
+        String line = script.take();
+        return line == END ? null : line;
+    }
+
+    /*
+     * Following a file, the producer may have written only a part of a line:
+     * the characters are kept till the end of the line arrives. Otherwise the
+     * last line may not end with a new line.
+     */
+    private String readLine() throws IOException, InterruptedException {
+        String line;
+        int c;
+        while (true) {
+            c = reader.read();
+            if (c == '\n') {
+                break;
+            } else if (c >= 0) {
+                partial.append((char) c);
+            } else if (follow) {
+                Thread.sleep(FOLLOW_INTERVAL);
+            } else if (partial.length() > 0) {
+                break;
+            } else {
+                return null;
+            }
+        }
+        if (partial.length() > 0 && partial.charAt(partial.length() - 1) == '\r') {
+            partial.setLength(partial.length() - 1);
+        }
+        line = partial.toString();
+        partial.setLength(0);
+        return line;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (producer != null) {
+            producer.interrupt();
+        }
+        if (closeReader) {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only record of the completed lines (or steps) of a batch, stored
+ * next to the batch file, one record per line:
+ * <pre>
+ * line OK|FAILED milliseconds command-hash
+ * </pre>
+ * Each record is written as soon as the command completes, so that a batch
+ * that dies can be resumed. The last record of a line wins, a record whose
+ * hash does not match the current text of the line is ignored (the line
+ * was edited).
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+final class BatchJournal implements Closeable {
+    static final String EXTENSION = ".journal";
+    private static final String OK = "OK";
+    private static final String FAILED = "FAILED";
+    private static final long SYNC_INTERVAL = 1000;
+
+    /**
+     * When the records are forced to the disk: after each record, at most
+     * once per second or never (the operating system decides). Records are
+     * never lost when only the console crashes.
+     */
+    enum Sync {
+        ALWAYS,
+        INTERVAL,
+        NEVER
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Sync sync;
+    private final Map<String, String> completed;
+    private long lastSync;
+
+    private BatchJournal(Path path, FileChannel channel, Sync sync, Map<String, String> completed) {
+        this.path = path;
+        this.channel = channel;
+        this.sync = sync;
+        this.completed = completed;
+        this.lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Open the journal of a batch file
+     * @param batch The batch file
+     * @param sync When to force the records to the disk
+     * @param resume True to read the completed lines and append to the
+     * journal, false to start a new one
+     * @return The journal
+     * @throws IOException If the journal cannot be read or written
+     */
+    static BatchJournal open(Path batch, Sync sync, boolean resume) throws IOException {
+        Path path = batch.resolveSibling(batch.getFileName() + EXTENSION);
+        Map<String, String> completed = new HashMap<>();
+        FileChannel channel;
+        if (resume && Files.exists(path)) {
+            read(path, completed);
+            boolean torn = !endsWithNewLine(path);
+            channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            if (torn) {
+                //The last record was cut by a crash
+                channel.write(ByteBuffer.wrap(new byte[]{'\n'}));
+            }
+        } else {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        return new BatchJournal(path, channel, sync, completed);
+    }
+
+    private static void read(Path path, Map<String, String> completed) throws IOException {
+        String[] record;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                record = line.split("\t");
+                if (record.length != 4) {
+                    continue;
+                }
+                if (OK.equals(record[1])) {
+                    completed.put(record[0], record[3]);
+                } else {
+                    completed.remove(record[0]);
+                }
+            }
+        }
+    }
+
+    private static boolean endsWithNewLine(Path path) throws IOException {
+        try (FileChannel reader = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            return reader.size() == 0 || (reader.read(last, reader.size() - 1) == 1 && last.get(0) == '\n');
+        }
+    }
+
+    private static String hash(String command) {
+        CRC32 crc = new CRC32();
+        crc.update(command.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * True if the line completed successfully in a previous run
+     * @param key The line number or the step
+     * @param command The text of the line
+     * @return True if completed
+     */
+    boolean isCompleted(String key, String command) {
+        return hash(command).equals(completed.get(key));
+    }
+
+    int getCompletedCount() {
+        return completed.size();
+    }
+
+    /**
+     * Append the outcome of a line
+     * @param key The line number or the step
+     * @param command The text of the line
+     * @param succeeded True if the command succeeded
+     * @param millis The running time
+     * @throws IOException If the record cannot be written
+     */
+    synchronized void record(String key, String command, boolean succeeded, long millis) throws IOException {
+        String record = String.format("%s\t%s\t%d\t%s\n", key, succeeded ? OK : FAILED, millis, hash(command));
+        ByteBuffer buffer = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        long now = System.currentTimeMillis();
+        if (sync == Sync.ALWAYS || (sync == Sync.INTERVAL && now - lastSync >= SYNC_INTERVAL)) {
+            channel.force(false);
+            lastSync = now;
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (sync != Sync.NEVER) {
+            channel.force(false);
+        }
+        channel.close();
+    }
+}
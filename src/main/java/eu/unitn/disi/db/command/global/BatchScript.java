@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import eu.unitn.disi.db.command.exceptions.ExecutionException;
+import eu.unitn.disi.db.command.util.Evaluate;
+import eu.unitn.disi.db.command.util.SyntaxError;
+import eu.unitn.disi.db.command.util.Token;
+import eu.unitn.disi.db.command.util.Tokenizer;
+import eu.unitn.disi.db.command.util.Tokenizer.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A batch script with variables and control flow, compiled once into a
+ * tree of statements on top of the {@link Tokenizer}:
+ * <pre>
+ * k = 10
+ * for eps in [0.1 0.01] {
+ *     exec (Algo -k $k -eps $eps)
+ *     if $status != 0 { print failed with $eps; break }
+ * }
+ * i = 0
+ * while $i &lt; $k { i = $i + 1 }
+ * </pre>
+ * Any other statement is a console command. After each command $status is
+ * 0 if it succeeded (1 if it failed, 127 if it does not exist), $time its
+ * running time in ms and $result the object it loaded (obj), if any.
+ * Variables not defined by the script are left as they are, so $graph still
+ * refers to the console object.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+final class BatchScript {
+    static final String EXTENSION = ".dcmd";
+    private static final Pattern RANGE = Pattern.compile("(-?\\d+)\\.\\.(-?\\d+)");
+    private static final Pattern INTEGER = Pattern.compile("-?\\d+");
+    private static final Pattern DECIMAL = Pattern.compile("-?(\\d+\\.\\d*|\\.\\d+)([eE]-?\\d+)?");
+    private static final Pattern VARIABLE = Pattern.compile("\\$(\\{([\\w.]+)\\}|([\\w.]+))");
+    private static final List<String> OPERATORS = Arrays.asList("+", "-", "*", "/", "%", "==", "!=", "<", "<=", ">", ">=");
+
+    private enum Flow {
+        NEXT,
+        BREAK,
+        EXIT
+    }
+
+    /*
+     * The variables of a run, also used to expand the words
+     */
+    static final class Scope implements Evaluate {
+        private final Map<String, Object> variables = new HashMap<>();
+        private final boolean stop;
+
+        Scope(boolean stop) {
+            this.stop = stop;
+        }
+
+        @Override
+        public Object eval(Token t) throws Exception {
+            return t.toString();
+        }
+
+        @Override
+        public Object get(String key) {
+            return variables.containsKey(key) ? variables.get(key) : "$" + key;
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            return variables.put(key, value);
+        }
+    }
+
+    private interface Statement {
+        Flow run(Scope scope) throws ExecutionException;
+    }
+
+    private interface Expression {
+        Object eval(Scope scope) throws ExecutionException;
+    }
+
+    private final List<Statement> statements;
+
+    private BatchScript(List<Statement> statements) {
+        this.statements = statements;
+    }
+
+    /**
+     * Compile a script
+     * @param source The text of the script
+     * @return The compiled script
+     * @throws ExecutionException If the script has syntax errors
+     */
+    static BatchScript compile(CharSequence source) throws ExecutionException {
+        try {
+            return new BatchScript(block(new Tokenizer(source)));
+        } catch (SyntaxError ex) {
+            throw new ExecutionException("Line %d, column %d: %s", ex.line(), ex.column(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Run the script
+     * @param scope The variables
+     * @throws ExecutionException If an expression cannot be evaluated or,
+     * stopping on failures, a command fails
+     */
+    void run(Scope scope) throws ExecutionException {
+        run(statements, scope);
+    }
+
+    private static Flow run(List<Statement> block, Scope scope) throws ExecutionException {
+        Flow flow;
+        for (Statement s : block) {
+            if ((flow = s.run(scope)) != Flow.NEXT) {
+                return flow;
+            }
+        }
+        return Flow.NEXT;
+    }
+
+    private static List<Statement> block(Tokenizer tok) throws ExecutionException {
+        List<Statement> block = new ArrayList<>();
+        List<Token> tokens = new ArrayList<>();
+        Type type;
+        do {
+            type = tok.next();
+            if (type == Type.NEWLINE || type == Type.SEMICOLON || type == Type.EOT) {
+                if (!tokens.isEmpty()) {
+                    block.add(statement(tokens));
+                    tokens = new ArrayList<>();
+                }
+            } else {
+                tokens.add(tok.token());
+            }
+        } while (type != Type.EOT);
+        return block;
+    }
+
+    private static List<Statement> closure(Token token) throws ExecutionException {
+        if (token.type() != Type.CLOSURE) {
+            throw error(token, "expected { ... }, found %s", token.source());
+        }
+        return block(new Tokenizer(token));
+    }
+
+    private static Statement statement(final List<Token> tokens) throws ExecutionException {
+        final Token first = tokens.get(0);
+        final String keyword = first.type() == Type.WORD ? first.toString() : "";
+
+        if (tokens.size() > 1 && tokens.get(1).type() == Type.ASSIGN) {
+            final String name = keyword;
+            final Expression value = tokens.size() > 2 ? expression(tokens.subList(2, tokens.size())) : (Scope s) -> "";
+            return (Scope scope) -> {
+                scope.put(name, value.eval(scope));
+                return Flow.NEXT;
+            };
+        }
+        switch (keyword) {
+            case "for":
+                return loop(tokens);
+            case "while":
+                return loopWhile(tokens);
+            case "if":
+                return conditional(tokens);
+            case "print":
+            case "echo":
+                return print(tokens.subList(1, tokens.size()));
+            case "break":
+                return (Scope scope) -> Flow.BREAK;
+            case "exit":
+            case "quit":
+                return (Scope scope) -> Flow.EXIT;
+            case "else":
+                throw error(first, "else without if, write '} else {' on the line of the if");
+            default:
+                return command(tokens);
+        }
+    }
+
+    /*
+     * for NAME in EXPRESSION { ... }
+     */
+    private static Statement loop(List<Token> tokens) throws ExecutionException {
+        if (tokens.size() < 5 || !"in".equals(tokens.get(2).toString())) {
+            throw error(tokens.get(0), "expected 'for NAME in VALUES { ... }'");
+        }
+        final String name = tokens.get(1).toString();
+        final Expression values = expression(tokens.subList(3, tokens.size() - 1));
+        final List<Statement> body = closure(tokens.get(tokens.size() - 1));
+        return (Scope scope) -> {
+            Iterator<?> it = iterate(values.eval(scope));
+            while (it.hasNext()) {
+                scope.put(name, it.next());
+                Flow flow = run(body, scope);
+                if (flow == Flow.BREAK) {
+                    break;
+                } else if (flow == Flow.EXIT) {
+                    return flow;
+                }
+            }
+            return Flow.NEXT;
+        };
+    }
+
+    /*
+     * while CONDITION { ... }
+     */
+    private static Statement loopWhile(List<Token> tokens) throws ExecutionException {
+        if (tokens.size() < 3) {
+            throw error(tokens.get(0), "expected 'while CONDITION { ... }'");
+        }
+        final Expression condition = expression(tokens.subList(1, tokens.size() - 1));
+        final List<Statement> body = closure(tokens.get(tokens.size() - 1));
+        return (Scope scope) -> {
+            while (isTrue(condition.eval(scope))) {
+                Flow flow = run(body, scope);
+                if (flow == Flow.BREAK) {
+                    break;
+                } else if (flow == Flow.EXIT) {
+                    return flow;
+                }
+            }
+            return Flow.NEXT;
+        };
+    }
+
+    /*
+     * if CONDITION { ... } [else if CONDITION { ... }] [else { ... }]
+     */
+    private static Statement conditional(List<Token> tokens) throws ExecutionException {
+        int body = 1;
+        while (body < tokens.size() && tokens.get(body).type() != Type.CLOSURE) {
+            body++;
+        }
+        if (body == 1 || body == tokens.size()) {
+            throw error(tokens.get(0), "expected 'if CONDITION { ... }'");
+        }
+        final Expression condition = expression(tokens.subList(1, body));
+        final List<Statement> then = closure(tokens.get(body));
+        final Statement otherwise;
+        if (body + 1 == tokens.size()) {
+            otherwise = null;
+        } else if (!"else".equals(tokens.get(body + 1).toString()) || body + 2 == tokens.size()) {
+            throw error(tokens.get(body + 1), "expected else after the if block");
+        } else if ("if".equals(tokens.get(body + 2).toString())) {
+            otherwise = conditional(tokens.subList(body + 2, tokens.size()));
+        } else if (body + 3 == tokens.size()) {
+            final List<Statement> block = closure(tokens.get(body + 2));
+            otherwise = (Scope scope) -> run(block, scope);
+        } else {
+            throw error(tokens.get(body + 2), "expected a single block after else");
+        }
+        return (Scope scope) -> {
+            if (isTrue(condition.eval(scope))) {
+                return run(then, scope);
+            }
+            return otherwise != null ? otherwise.run(scope) : Flow.NEXT;
+        };
+    }
+
+    private static Statement print(final List<Token> tokens) {
+        return (Scope scope) -> {
+            StringBuilder line = new StringBuilder();
+            for (Token t : tokens) {
+                line.append(line.length() > 0 ? " " : "").append(word(t, scope));
+            }
+            ExecutionService.getInstance().out().println(line);
+            return Flow.NEXT;
+        };
+    }
+
+    /*
+     * A console command, the words are expanded when it runs
+     */
+    private static Statement command(final List<Token> tokens) {
+        return (Scope scope) -> {
+            ExecutionService global = ExecutionService.getInstance();
+            String[] args = new String[tokens.size()];
+            long start = System.currentTimeMillis();
+            Object retval, result = null;
+            int status = 0;
+            for (int i = 0; i < args.length; i++) {
+                args[i] = word(tokens.get(i), scope);
+            }
+            retval = global.runCommand(args, true);
+            if (retval == ExecutionService.CommandError.ERROR) {
+                status = 1;
+            } else if (retval == ExecutionService.CommandError.NOT_EXISTS) {
+                status = 127;
+            } else if ("obj".equalsIgnoreCase(args[0]) && args.length > 1) {
+                result = global.getDynamicObjects().get(args[1]);
+            }
+            scope.put("status", (long) status);
+            scope.put("time", System.currentTimeMillis() - start);
+            scope.put("result", result);
+            if (status != 0 && scope.stop) {
+                throw new ExecutionException("Line %d: command %s failed, script stopped", tokens.get(0).line(), args[0]);
+            }
+            return Flow.NEXT;
+        };
+    }
+
+    /*
+     * Words are expanded by the tokenizer, the groups (e.g., the command of
+     * exec) only substitute the script variables and keep their quotes
+     */
+    private static String word(Token token, Scope scope) {
+        if (token.type() == Type.WORD) {
+            return String.valueOf(Tokenizer.expand(token, scope));
+        }
+        Matcher m = VARIABLE.matcher(token);
+        StringBuffer text = new StringBuffer();
+        String name;
+        while (m.find()) {
+            name = m.group(2) != null ? m.group(2) : m.group(3);
+            m.appendReplacement(text, Matcher.quoteReplacement(String.valueOf(scope.get(name))));
+        }
+        m.appendTail(text);
+        return text.toString();
+    }
+
+    private static Expression expression(List<Token> tokens) throws ExecutionException {
+        if (tokens.size() == 1) {
+            return value(tokens.get(0));
+        }
+        if (tokens.size() == 3 && tokens.get(1).type() == Type.WORD && OPERATORS.contains(tokens.get(1).toString())) {
+            final Expression left = value(tokens.get(0)), right = value(tokens.get(2));
+            final String operator = tokens.get(1).toString();
+            final Token at = tokens.get(1);
+            return (Scope scope) -> apply(operator, left.eval(scope), right.eval(scope), at);
+        }
+        throw error(tokens.get(0), "expected a value or 'VALUE OPERATOR VALUE' with one of %s", OPERATORS);
+    }
+
+    private static Expression value(final Token token) throws ExecutionException {
+        switch (token.type()) {
+            case WORD:
+                return (Scope scope) -> number(Tokenizer.expand(token, scope));
+            case ARRAY:
+                final List<Token> items = new ArrayList<>();
+                Tokenizer tok = new Tokenizer(token);
+                while (tok.next() != Type.EOT) {
+                    items.add(tok.token());
+                }
+                return (Scope scope) -> {
+                    List<Object> list = new ArrayList<>(items.size());
+                    for (Token item : items) {
+                        list.add(number(word(item, scope)));
+                    }
+                    return list;
+                };
+            case EXECUTION:
+                return (Scope scope) -> word(token, scope);
+            default:
+                throw error(token, "unexpected %s", token.source());
+        }
+    }
+
+    private static Object number(Object value) {
+        if (value instanceof String || value instanceof CharSequence) {
+            String s = value.toString();
+            if (INTEGER.matcher(s).matches()) {
+                try {
+                    return Long.parseLong(s);
+                } catch (NumberFormatException ex) {
+                    return s;
+                }
+            } else if (DECIMAL.matcher(s).matches()) {
+                return Double.parseDouble(s);
+            }
+            return s;
+        }
+        return value;
+    }
+
+    private static Object apply(String operator, Object left, Object right, Token at) throws ExecutionException {
+        if (left instanceof Number && right instanceof Number) {
+            boolean integers = (left instanceof Long || left instanceof Integer) && (right instanceof Long || right instanceof Integer);
+            if (integers) {
+                long a = ((Number) left).longValue(), b = ((Number) right).longValue();
+                switch (operator) {
+                    case "+": return a + b;
+                    case "-": return a - b;
+                    case "*": return a * b;
+                    case "/":
+                    case "%":
+                        if (b == 0) {
+                            throw error(at, "division by zero");
+                        }
+                        return "/".equals(operator) ? a / b : a % b;
+                    default:
+                        return compare(operator, Long.compare(a, b));
+                }
+            }
+            double a = ((Number) left).doubleValue(), b = ((Number) right).doubleValue();
+            switch (operator) {
+                case "+": return a + b;
+                case "-": return a - b;
+                case "*": return a * b;
+                case "/": return a / b;
+                case "%": return a % b;
+                default:
+                    return compare(operator, Double.compare(a, b));
+            }
+        }
+        String a = String.valueOf(left), b = String.valueOf(right);
+        switch (operator) {
+            case "+":
+                return a + b;
+            case "==":
+            case "!=":
+            case "<":
+            case "<=":
+            case ">":
+            case ">=":
+                return compare(operator, a.compareTo(b));
+            default:
+                throw error(at, "%s cannot be applied to %s and %s", operator, a, b);
+        }
+    }
+
+    private static boolean compare(String operator, int c) {
+        switch (operator) {
+            case "==": return c == 0;
+            case "!=": return c != 0;
+            case "<": return c < 0;
+            case "<=": return c <= 0;
+            case ">": return c > 0;
+            default: return c >= 0;
+        }
+    }
+
+    private static boolean isTrue(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if (value instanceof Number) {
+            return ((Number) value).doubleValue() != 0;
+        }
+        return value != null && !"".equals(value.toString()) && !"false".equals(value.toString());
+    }
+
+    /*
+     * Lists, arrays, ranges FROM..TO (computed while iterating) or the words
+     * of a string
+     */
+    private static Iterator<?> iterate(Object values) {
+        if (values instanceof Collection) {
+            return ((Collection<?>) values).iterator();
+        } else if (values instanceof Object[]) {
+            return Arrays.asList((Object[]) values).iterator();
+        }
+        String text = String.valueOf(values).trim();
+        Matcher range = RANGE.matcher(text);
+        if (range.matches()) {
+            final long from = Long.parseLong(range.group(1)), to = Long.parseLong(range.group(2));
+            final long step = from <= to ? 1 : -1;
+            return new Iterator<Long>() {
+                private long next = from;
+                private boolean done;
+
+                @Override
+                public boolean hasNext() {
+                    return !done;
+                }
+
+                @Override
+                public Long next() {
+                    if (done) {
+                        throw new NoSuchElementException();
+                    }
+                    long current = next;
+                    done = current == to;
+                    next += step;
+                    return current;
+                }
+            };
+        }
+        return text.isEmpty() ? new ArrayList<>().iterator() : Arrays.asList(text.split("\\s+")).iterator();
+    }
+
+    private static ExecutionException error(Token at, String format, Object... args) {
+        return new ExecutionException("Line %d, column %d: %s", at.line(), at.column(), String.format(format, args));
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import eu.unitn.disi.db.command.exceptions.ExecutionException;
+import eu.unitn.disi.db.command.util.JarLoader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of worker JVMs running batch lines, for commands that are not
+ * thread safe or leak memory. Each worker is a console reading commands from
+ * its standard input and answering on its standard output with the status,
+ * the running time and the output of the command. The workers start with the
+ * state of the console (its jar, libraries and objects), the lines of the
+ * batch that prepare the workers (e.g., jar and obj) are run on all of them.
+ * These lines are replayed on the workers restarted after a crash, the
+ * crashed line is tried again.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+final class BatchWorkers implements Closeable {
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int OK = 0;
+    private static final int ERROR = 1;
+    private static final int NOT_EXISTS = 2;
+    private static final long EXIT_TIMEOUT = 5;
+
+    private final List<String> jvmOptions;
+    private final PrintStream out;
+    private final List<Worker> workers;
+    private final BlockingQueue<Worker> idle;
+    private final List<String> preamble;
+    private final int size;
+    private int started;
+    private String startError;
+
+    /*
+     * The connection with a worker process
+     */
+    private static final class Worker {
+        private final int id;
+        private final Process process;
+        private final DataOutputStream commands;
+        private final DataInputStream results;
+
+        private Worker(int id, Process process) {
+            this.id = id;
+            this.process = process;
+            this.commands = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.results = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        /*
+         * Returns the status, the output is printed on out
+         */
+        private int run(String line, String tag, PrintStream out) throws IOException {
+            write(commands, line);
+            commands.flush();
+            int status = results.readInt();
+            results.readLong();
+            byte[] output = new byte[results.readInt()];
+            results.readFully(output);
+            print(out, tag, new String(output, Charset.defaultCharset()));
+            return status;
+        }
+    }
+
+    private BatchWorkers(int size, List<String> jvmOptions, List<String> preamble, PrintStream out) {
+        this.size = size;
+        this.jvmOptions = jvmOptions;
+        this.out = out;
+        this.workers = new ArrayList<>(size);
+        this.idle = new ArrayBlockingQueue<>(size);
+        this.preamble = new ArrayList<>(preamble);
+    }
+
+    /**
+     * The lines that rebuild the console in a worker: the jar of the commands
+     * and the loaders of the objects, waiting for the objects loaded in
+     * background. The libraries are in the class path of the workers.
+     * @return The lines
+     * @throws ExecutionException If the state of the console cannot be
+     * rebuilt, e.g., an object was not loaded with a loader command
+     */
+    static List<String> consoleState() throws ExecutionException {
+        ExecutionService global = ExecutionService.getInstance();
+        List<String> lines = new ArrayList<>();
+        Path jar = global.commandLoader.getJarPath();
+        for (String variable : global.getPendingObjects().keySet()) {
+            global.waitForObject(variable);
+        }
+        if (jar != null) {
+            if (jar.toString().matches(".*\\s.*")) {
+                throw new ExecutionException("The path of jar %s contains spaces and cannot be loaded by the worker processes", jar);
+            }
+            lines.add("jar " + jar);
+        }
+        for (Map.Entry<String, String> loader : global.getLoaders().entrySet()) {
+            if (loader.getValue() == null) {
+                throw new ExecutionException("Object %s was not loaded with obj or attach and cannot be rebuilt in the worker processes", loader.getKey());
+            }
+            lines.add(loader.getValue());
+        }
+        return lines;
+    }
+
+    /**
+     * Start the workers, or wait for the batch to load a jar if the console
+     * has none: workers without commands are not started
+     * @param size The number of worker processes
+     * @param jvmOptions The options of the worker JVMs (e.g., -Xmx4g)
+     * @param preamble The lines preparing each worker, e.g., the state of
+     * the console
+     * @param out Where the output of the commands is printed
+     * @return The pool
+     * @throws IOException If a process cannot be started or prepared
+     */
+    static BatchWorkers start(int size, List<String> jvmOptions, List<String> preamble, PrintStream out) throws IOException {
+        BatchWorkers pool = new BatchWorkers(size, jvmOptions, preamble, out);
+        if (pool.hasJar()) {
+            pool.spawnAll();
+        }
+        return pool;
+    }
+
+    private synchronized void spawnAll() throws IOException {
+        if (!workers.isEmpty()) {
+            return;
+        }
+        if (startError != null) {
+            throw new IOException(startError);
+        }
+        try {
+            for (int i = 0; i < size; i++) {
+                Worker w = spawn();
+                workers.add(w);
+                for (String line : preamble) {
+                    if (w.run(line, "worker " + w.id, out) != OK) {
+                        throw new IOException(String.format("worker %d cannot run %s", w.id, line));
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            //The following lines fail at once, instead of starting the workers again
+            startError = ex.getMessage();
+            close();
+            workers.clear();
+            throw ex;
+        }
+        idle.addAll(workers);
+    }
+
+    private Worker spawn() throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        //A worker out of memory exits and is restarted, instead of hanging
+        command.add("-XX:+ExitOnOutOfMemoryError");
+        command.addAll(jvmOptions);
+        command.addAll(Arrays.asList("-cp", classPath(), BatchWorkers.class.getName()));
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        return new Worker(++started, process);
+    }
+
+    /*
+     * The class path of the console and the libraries loaded with the jars
+     */
+    private static String classPath() throws IOException {
+        StringBuilder path = new StringBuilder(System.getProperty("java.class.path"));
+        for (URL library : JarLoader.getLibraryLoader().getURLs()) {
+            try {
+                path.append(File.pathSeparator).append(Paths.get(library.toURI()));
+            } catch (URISyntaxException | IllegalArgumentException ex) {
+                throw new IOException(String.format("Library %s cannot be passed to the worker processes", library), ex);
+            }
+        }
+        return path.toString();
+    }
+
+    /**
+     * Run a line on an idle worker, waiting for one if all are busy
+     * @param line The command
+     * @param tag The tag of the output lines
+     * @return The result of the command, as returned by the console
+     * @throws InterruptedException If interrupted while waiting a worker
+     */
+    Object run(String line, String tag) throws InterruptedException {
+        if (!hasJar()) {
+            print(out, tag, "No jar loaded in the console or by the batch, the worker processes have no commands");
+            return ExecutionService.CommandError.ERROR;
+        }
+        try {
+            spawnAll();
+        } catch (IOException ex) {
+            print(out, tag, "Cannot start the worker processes, message: " + ex.getMessage());
+            return ExecutionService.CommandError.ERROR;
+        }
+        Worker w = idle.take();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return result(w.run(line, tag, out));
+                } catch (IOException ex) {
+                    out.printf("[%s] worker %d crashed (%s)%s\n", tag, w.id, exitCode(w), attempt < MAX_ATTEMPTS ? ", restarting it and trying again" : "");
+                    w = restart(w);
+                    if (attempt >= MAX_ATTEMPTS) {
+                        return ExecutionService.CommandError.ERROR;
+                    }
+                }
+            }
+        } finally {
+            idle.add(w);
+        }
+    }
+
+    /**
+     * Run a line on all the workers, waiting for the busy ones, and replay it
+     * on the workers restarted later
+     * @param line The command (e.g., jar or obj)
+     * @param tag The tag of the output lines
+     * @return An error if the command failed on a worker or if interrupted
+     */
+    Object broadcast(String line, String tag) {
+        List<Worker> taken;
+        Object retval = null;
+        boolean deferred;
+        synchronized (this) {
+            //Run when the workers start, they start with the first jar
+            deferred = workers.isEmpty();
+            if (deferred) {
+                preamble.add(line);
+            }
+        }
+        if (deferred) {
+            if (!hasJar()) {
+                return null;
+            }
+            try {
+                spawnAll();
+                return null;
+            } catch (IOException ex) {
+                print(out, tag, "Cannot start the worker processes, message: " + ex.getMessage());
+                return ExecutionService.CommandError.ERROR;
+            }
+        }
+        taken = new ArrayList<>(workers.size());
+        try {
+            while (taken.size() < workers.size()) {
+                taken.add(idle.take());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            idle.addAll(taken);
+            return ExecutionService.CommandError.ERROR;
+        }
+        synchronized (this) {
+            preamble.add(line);
+        }
+        for (int i = 0; i < taken.size(); i++) {
+            Worker w = taken.get(i);
+            try {
+                if (w.run(line, tag, out) != OK) {
+                    retval = ExecutionService.CommandError.ERROR;
+                }
+            } catch (IOException ex) {
+                out.printf("[%s] worker %d crashed (%s), restarting it\n", tag, w.id, exitCode(w));
+                taken.set(i, restart(w));
+                retval = ExecutionService.CommandError.ERROR;
+            }
+        }
+        idle.addAll(taken);
+        return retval;
+    }
+
+    private synchronized boolean hasJar() {
+        for (String line : preamble) {
+            if (line.startsWith("jar ")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Replace a crashed worker with a new one that runs the preamble again,
+     * the caller owns the crashed worker and gives the new one back to idle
+     */
+    private synchronized Worker restart(Worker crashed) {
+        int index = workers.indexOf(crashed);
+        crashed.process.destroyForcibly();
+        if (index < 0) {
+            //Not a worker of the pool (anymore), nothing to replace
+            out.printf("Worker %d is not in the pool, it is not restarted\n", crashed.id);
+            return crashed;
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Worker w = spawn();
+                for (String line : preamble) {
+                    if (w.run(line, "worker " + w.id, out) != OK) {
+                        out.printf("Worker %d: %s failed after the restart\n", w.id, line);
+                    }
+                }
+                workers.set(index, w);
+                return w;
+            } catch (IOException ex) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    //Keep the dead worker, the next lines will try again
+                    out.printf("Cannot restart worker %d, message: %s\n", crashed.id, ex.getMessage());
+                    return crashed;
+                }
+            }
+        }
+    }
+
+    private static String exitCode(Worker w) {
+        try {
+            return w.process.waitFor(1, TimeUnit.SECONDS) ? "exit code " + w.process.exitValue() : "not responding";
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return "interrupted";
+        }
+    }
+
+    private static Object result(int status) {
+        switch (status) {
+            case OK:
+                return null;
+            case NOT_EXISTS:
+                return ExecutionService.CommandError.NOT_EXISTS;
+            default:
+                return ExecutionService.CommandError.ERROR;
+        }
+    }
+
+    /*
+     * Commands are sent as UTF-8 prefixed by their length, since writeUTF
+     * fails on lines longer than 64KB
+     */
+    private static void write(DataOutputStream commands, String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        commands.writeInt(bytes.length);
+        commands.write(bytes);
+    }
+
+    private static String read(DataInputStream commands) throws IOException {
+        byte[] bytes = new byte[commands.readInt()];
+        commands.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void print(PrintStream out, String tag, String text) {
+        synchronized (out) {
+            if (!text.isEmpty()) {
+                for (String outputLine : text.split("\r?\n")) {
+                    out.printf("[%s] %s\n", tag, outputLine);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the workers: they exit at the end of their input
+     */
+    @Override
+    public void close() {
+        for (Worker w : workers) {
+            try {
+                w.commands.close();
+                if (!w.process.waitFor(EXIT_TIMEOUT, TimeUnit.SECONDS)) {
+                    w.process.destroyForcibly();
+                }
+            } catch (IOException ex) {
+                w.process.destroyForcibly();
+            } catch (InterruptedException ex) {
+                w.process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The worker process: runs the commands read from the standard input
+     * and writes the results on the standard output, while the output of
+     * the commands is collected
+     * @param args Not used
+     * @throws IOException If the connection with the batch is lost
+     */
+    public static void main(String[] args) throws IOException {
+        DataOutputStream results = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        DataInputStream commands = new DataInputStream(new BufferedInputStream(System.in));
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        //Before anything else (e.g., the logger) takes the standard output
+        PrintStream output = new PrintStream(buffer, true);
+        System.setOut(output);
+        ExecutionService global = ExecutionService.getInstance();
+        global.setOut(output);
+        String line;
+        Object retval;
+        long start;
+
+        while (true) {
+            try {
+                line = read(commands);
+            } catch (EOFException ex) {
+                break;
+            }
+            buffer.reset();
+            start = System.currentTimeMillis();
+            retval = global.runCommand(ExecutionService.tokenizeCommand(line), true);
+            output.flush();
+            results.writeInt(retval == ExecutionService.CommandError.NOT_EXISTS ? NOT_EXISTS
+                    : retval == ExecutionService.CommandError.ERROR ? ERROR : OK);
+            results.writeLong(System.currentTimeMillis() - start);
+            results.writeInt(buffer.size());
+            buffer.writeTo(results);
+            results.flush();
+        }
+        System.exit(0);
+    }
+}
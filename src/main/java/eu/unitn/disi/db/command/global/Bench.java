@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import eu.unitn.disi.db.command.CommandInput;
+import eu.unitn.disi.db.command.PositionalInput;
+import eu.unitn.disi.db.command.exceptions.ExecutionException;
+import eu.unitn.disi.db.command.util.FileWriteOperation.Mode;
+import eu.unitn.disi.db.command.util.stats.Statistics;
+import eu.unitn.disi.db.command.util.stats.StatisticsCSVExporter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Run a command several times in the warm console and report statistics on
+ * the measured runs: wall time, cpu time, allocated memory and garbage
+ * collection time. The warm-up runs are not measured. CPU time and
+ * allocations are those of the thread running the command, not of the
+ * threads it starts.
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+@ConsoleCommand(name = "bench")
+public class Bench extends Command {
+    private static final String RUN = "run";
+    private static final String WALL = "wall ms";
+    private static final String CPU = "cpu ms";
+    private static final String ALLOCATED = "alloc MB";
+    private static final String GC = "gc ms";
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    private String command;
+    private int warmup;
+    private int runs;
+    private double confidence;
+    private String csv;
+    private boolean gc;
+    private boolean quiet;
+
+    @Override
+    protected void execute() throws ExecutionException {
+        ExecutionService global = ExecutionService.getInstance();
+        PrintStream console = global.out(), stdout = System.out;
+        String[] args = ExecutionService.tokenizeCommand(command);
+        Statistics stats = new Statistics();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = allocationBean(threads);
+        long wall, cpu, allocated, gcTime;
+
+        if (runs < 1 || warmup < 0) {
+            throw new ExecutionException("The number of runs must be positive and the warm-up runs not negative");
+        }
+        if (args.length == 0) {
+            throw new ExecutionException("No command to benchmark");
+        }
+        for (String field : new String[]{RUN, WALL, CPU, ALLOCATED, GC}) {
+            stats.addNumericField(field);
+        }
+        if (quiet) {
+            PrintStream discard = new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+            global.setOut(discard);
+            System.setOut(discard);
+        }
+        try {
+            for (int i = 1; i <= warmup; i++) {
+                if (global.runCommand(args) instanceof ExecutionService.CommandError) {
+                    throw new ExecutionException("Warm-up run %d of %s failed", i, args[0]);
+                }
+            }
+            for (int i = 1; i <= runs; i++) {
+                if (gc) {
+                    System.gc();
+                }
+                gcTime = -gcTime();
+                allocated = allocations != null ? -allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+                cpu = threads.isCurrentThreadCpuTimeSupported() ? -threads.getCurrentThreadCpuTime() : 0;
+                wall = -System.nanoTime();
+                if (global.runCommand(args) instanceof ExecutionService.CommandError) {
+                    throw new ExecutionException("Run %d of %s failed", i, args[0]);
+                }
+                wall += System.nanoTime();
+                cpu += threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+                allocated += allocations != null ? allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+                gcTime += gcTime();
+                stats.addNumericValue(RUN, i);
+                stats.addNumericValue(WALL, wall / 1e6);
+                stats.addNumericValue(CPU, cpu / 1e6);
+                stats.addNumericValue(ALLOCATED, allocated / (1024.0 * 1024.0));
+                stats.addNumericValue(GC, gcTime);
+            }
+        } finally {
+            if (quiet) {
+                global.setOut(console);
+                System.setOut(stdout);
+            }
+        }
+        report(stats, console, allocations != null);
+        if (!"".equals(csv)) {
+            try {
+                new StatisticsCSVExporter(stats, csv, Mode.OVERWRITE).write();
+                console.printf("Runs exported to %s\n", csv);
+            } catch (IOException ex) {
+                throw new ExecutionException("Cannot export the runs to %s, message: %s", csv, ex.getMessage());
+            }
+        }
+    }
+
+    static com.sun.management.ThreadMXBean allocationBean(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                return bean;
+            }
+        }
+        return null;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, collector.getCollectionTime());
+        }
+        return time;
+    }
+
+    private void report(Statistics stats, PrintStream out, boolean allocations) {
+        double mean, ci;
+        out.printf("%s: %d runs after %d warm-up runs\n", command, runs, warmup);
+        out.printf("%-9s %10s %10s %23s %10s", "", "mean", "sd", String.format("%.0f%% confidence", confidence * 100), "min");
+        for (double p : PERCENTILES) {
+            out.printf(" %10s", String.format("p%.0f", p));
+        }
+        out.printf(" %10s\n", "max");
+        for (String field : new String[]{WALL, CPU, ALLOCATED, GC}) {
+            if (ALLOCATED.equals(field) && !allocations) {
+                continue;
+            }
+            mean = stats.getAverage(field);
+            ci = stats.getConfidenceInterval(field, confidence);
+            out.printf("%-9s %10.3f %10.3f %23s %10.3f", field, mean, stats.getStandardDeviation(field),
+                    Double.isNaN(ci) ? "-" : String.format("[%.3f, %.3f]", mean - ci, mean + ci), stats.getMin(field));
+            for (double p : PERCENTILES) {
+                out.printf(" %10.3f", stats.getPercentile(field, p));
+            }
+            out.printf(" %10.3f\n", stats.getPercentile(field, 100));
+        }
+    }
+
+    @Override
+    protected String commandDescription() {
+        return "Run a command several times and report statistics on its running time and allocations";
+    }
+
+    @PositionalInput(
+        description = "the command to be measured",
+        name = "command",
+        position = 1
+    )
+    public void setCommand(String command) {
+        this.command = command;
+    }
+
+    @CommandInput(
+        consoleFormat = "-warmup",
+        defaultValue = "5",
+        mandatory = false,
+        description = "number of runs before the measured ones, to load and compile the code"
+    )
+    public void setWarmup(int warmup) {
+        this.warmup = warmup;
+    }
+
+    @CommandInput(
+        consoleFormat = "-runs",
+        defaultValue = "30",
+        mandatory = false,
+        description = "number of measured runs"
+    )
+    public void setRuns(int runs) {
+        this.runs = runs;
+    }
+
+    @CommandInput(
+        consoleFormat = "-confidence",
+        defaultValue = "0.95",
+        mandatory = false,
+        description = "confidence level of the interval of the mean"
+    )
+    public void setConfidence(double confidence) {
+        this.confidence = confidence;
+    }
+
+    @CommandInput(
+        consoleFormat = "-csv",
+        defaultValue = "",
+        mandatory = false,
+        description = "export the measures of each run to a csv file"
+    )
+    public void setCsv(String csv) {
+        this.csv = csv;
+    }
+
+    @CommandInput(
+        consoleFormat = "-gc",
+        defaultValue = "false",
+        mandatory = false,
+        description = "run the garbage collector before each measured run"
+    )
+    public void setGc(boolean gc) {
+        this.gc = gc;
+    }
+
+    @CommandInput(
+        consoleFormat = "-q",
+        defaultValue = "false",
+        mandatory = false,
+        description = "discard the output of the command"
+    )
+    public void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+}
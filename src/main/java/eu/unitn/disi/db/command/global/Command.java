@@ -101,6 +101,16 @@ public abstract class Command extends LoggableObject {
      */
     protected abstract String commandDescription();
 
+    /**
+     * Optional hook invoked on a new instance after the jar is loaded with 
+     * -warm, to run the hot code of the command once before the first real 
+     * execution. Parameters are not set at this time.
+     *
+     * @throws ExecutionException If the warm-up fails
+     */
+    protected void warmUp() throws ExecutionException {
+    }
+
     /**
      * Returns an help that can be used in a user interface
      *
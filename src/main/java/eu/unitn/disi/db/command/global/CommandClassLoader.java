@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import eu.unitn.disi.db.command.util.ClassFileInfo;
+import eu.unitn.disi.db.command.util.JarIndex;
+import eu.unitn.disi.db.command.util.JarLoader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+import static org.apache.log4j.Logger.getLogger;
+
+/**
+ * A generation of the classes loaded from a command jar. A new generation
+ * defines only the classes that changed with respect to the previous one
+ * (and the classes depending on them), the others are delegated to the
+ * generation that defined them, so that they keep their JIT state.
+ * <p>
+ * The classes of the jar are loaded child-first, everything else comes from
+ * the shared library layer ({@link JarLoader#getLibraryLoader()}). The 
+ * console classes and the JDK are always taken from the parent, even if the 
+ * jar embeds a copy of them.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+final class CommandClassLoader extends ClassLoader {
+    private static final String CLASS_SUFFIX = ".class";
+    private static final Logger logger = getLogger(CommandClassLoader.class);
+    private static final String[] PARENT_FIRST = {"java.", "eu.unitn.disi.db.command."};
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    private static volatile CommandClassLoader latest;
+
+    private final int generation;
+    private final JarIndex index;
+    private final Set<String> pending;
+    private final Map<String, CommandClassLoader> owners;
+    private final Map<String, String> hashes;
+    private final Map<String, ClassFileInfo> infos;
+    private final Set<String> changed;
+    private final Set<String> dependents;
+    private final Set<String> removed;
+    private volatile String contentHash;
+
+    /**
+     * An empty generation, with no classes
+     */
+    CommandClassLoader() {
+        this(0, null);
+    }
+
+    private CommandClassLoader(int generation, JarIndex index) {
+        super(JarLoader.getLibraryLoader());
+        this.generation = generation;
+        this.index = index;
+        this.pending = ConcurrentHashMap.newKeySet();
+        this.owners = new HashMap<>();
+        this.hashes = new HashMap<>();
+        this.infos = new HashMap<>();
+        this.changed = new HashSet<>();
+        this.dependents = new HashSet<>();
+        this.removed = new HashSet<>();
+    }
+
+    /**
+     * Create the next generation from a jar. Classes are compared through the
+     * hashes in the central directory and only the changed ones are read. 
+     * @param index The index of the jar
+     * @param previous The previous generation
+     * @param full True to redefine all the classes
+     * @return The new generation
+     * @throws IOException If some class file is malformed
+     */
+    static CommandClassLoader next(JarIndex index, CommandClassLoader previous, boolean full) throws IOException {
+        CommandClassLoader loader = new CommandClassLoader(previous.generation + 1, index);
+        String name, hash;
+
+        for (String entry : index.getEntryNames()) {
+            if (entry.endsWith(CLASS_SUFFIX)) {
+                name = entry.substring(0, entry.length() - CLASS_SUFFIX.length()).replace('/', '.');
+                if (isChildFirst(name)) {
+                    hash = index.getHash(entry);
+                    loader.hashes.put(name, hash);
+                    if (!full && hash.equals(previous.hashes.get(name))) {
+                        loader.infos.put(name, previous.infos.get(name));
+                    } else {
+                        loader.changed.add(name);
+                        loader.infos.put(name, ClassFileInfo.parse(index.read(entry)));
+                    }
+                }
+            }
+        }
+        for (String old : previous.hashes.keySet()) {
+            if (!loader.hashes.containsKey(old)) {
+                loader.removed.add(old);
+            }
+        }
+
+        //Classes referring to a changed class must be redefined as well
+        Map<String, List<String>> referencedBy = new HashMap<>();
+        for (Map.Entry<String, ClassFileInfo> entry : loader.infos.entrySet()) {
+            for (String ref : entry.getValue().getReferencedClasses()) {
+                if (loader.hashes.containsKey(ref) || loader.removed.contains(ref)) {
+                    referencedBy.computeIfAbsent(ref, k -> new ArrayList<>()).add(entry.getKey());
+                }
+            }
+        }
+        Deque<String> queue = new ArrayDeque<>(loader.changed);
+        queue.addAll(loader.removed);
+        Set<String> reload = new HashSet<>(loader.changed);
+        List<String> refs;
+        while (!queue.isEmpty()) {
+            refs = referencedBy.get(queue.poll());
+            if (refs != null) {
+                for (String ref : refs) {
+                    if (reload.add(ref)) {
+                        loader.dependents.add(ref);
+                        queue.add(ref);
+                    }
+                }
+            }
+        }
+        for (String cls : loader.hashes.keySet()) {
+            if (reload.contains(cls)) {
+                loader.owners.put(cls, loader);
+                loader.pending.add(cls);
+            } else {
+                loader.owners.put(cls, previous.owners.get(cls));
+            }
+        }
+        latest = loader;
+        return loader;
+    }
+
+    private static boolean isChildFirst(String name) {
+        if (name.endsWith("module-info") || name.endsWith("package-info")) {
+            return false;
+        }
+        for (String prefix : PARENT_FIRST) {
+            if (name.startsWith(prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        CommandClassLoader owner = owners.get(name);
+        if (owner == null) {
+            return super.loadClass(name, resolve);
+        }
+        if (owner != this) {
+            return owner.loadClass(name, resolve);
+        }
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                c = findClass(name);
+            }
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        if (!pending.contains(name)) {
+            throw new ClassNotFoundException(name);
+        }
+        String entry = name.replace('.', '/') + CLASS_SUFFIX;
+        String hash = hashes.get(name);
+        byte[] bytes = index.read(entry, hash);
+        CommandClassLoader current = latest;
+        if (bytes == null && current != null && current != this) {
+            //The jar has been rewritten, the newest one may have the same class
+            bytes = current.index.read(entry, hash);
+        }
+        if (bytes == null) {
+            throw new ClassNotFoundException(String.format("%s changed on disk in %s, reload the jar", name, index.getPath()));
+        }
+        Class<?> c = defineClass(name, bytes, 0, bytes.length);
+        pending.remove(name);
+        return c;
+    }
+
+    @Override
+    protected URL findResource(String name) {
+        return index == null ? null : index.getURL(name);
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) throws IOException {
+        URL url = findResource(name);
+        return url == null ? Collections.<URL>emptyEnumeration() : Collections.enumeration(Collections.singletonList(url));
+    }
+
+    @Override
+    public InputStream getResourceAsStream(String name) {
+        try {
+            InputStream in = index == null ? null : index.openStream(name);
+            if (in != null) {
+                return in;
+            }
+        } catch (IOException | IllegalStateException ex) {
+            logger.warn(String.format("Cannot read %s from %s, message: %s", name, index.getPath(), ex.getMessage()));
+        }
+        return super.getResourceAsStream(name);
+    }
+
+    /**
+     * Load the (non abstract) commands of the jar. Commands are recognized
+     * from the super classes in the bytecode, so that only them and the 
+     * classes they need are defined. 
+     * @return A map (class name, command class)
+     */
+    Map<String, Class<? extends Command>> loadCommands() {
+        Map<String, Class<? extends Command>> commands = new HashMap<>();
+        Map<String, Boolean> isCommand = new HashMap<>();
+        ClassFileInfo info;
+        for (Map.Entry<String, ClassFileInfo> entry : infos.entrySet()) {
+            info = entry.getValue();
+            if (!info.isAbstract() && isCommand(info.getSuperName(), isCommand)) {
+                try {
+                    commands.put(entry.getKey(), loadClass(entry.getKey()).asSubclass(Command.class));
+                } catch (ClassNotFoundException | LinkageError ex) {
+                    logger.warn(String.format("Cannot load command %s, message: %s", entry.getKey(), ex));
+                }
+            }
+        }
+        return commands;
+    }
+
+    /*
+     * Walk up the hierarchy in the bytecode till a class outside the jar
+     */
+    private boolean isCommand(String name, Map<String, Boolean> known) {
+        List<String> path = new ArrayList<>();
+        Boolean result = null;
+        ClassFileInfo info;
+        while (result == null) {
+            if (name == null) {
+                result = false;
+            } else if (known.containsKey(name)) {
+                result = known.get(name);
+            } else if ((info = infos.get(name)) != null) {
+                path.add(name);
+                name = info.getSuperName();
+            } else {
+                try {
+                    result = Command.class.isAssignableFrom(Class.forName(name, false, getParent()));
+                } catch (ClassNotFoundException | LinkageError ex) {
+                    result = false;
+                }
+                known.put(name, result);
+            }
+        }
+        for (String cls : path) {
+            known.put(cls, result);
+        }
+        return result;
+    }
+
+    /**
+     * Load (without initializing) the classes of the jar referenced by a class
+     * @param name The name of the class
+     * @return The number of classes loaded
+     */
+    int preloadReferences(String name) {
+        ClassFileInfo info = infos.get(name);
+        int loaded = 0;
+        if (info != null) {
+            for (String ref : info.getReferencedClasses()) {
+                if (owners.containsKey(ref)) {
+                    try {
+                        loadClass(ref);
+                        loaded++;
+                    } catch (ClassNotFoundException | LinkageError ex) {
+                        //It will fail again when used
+                    }
+                }
+            }
+        }
+        return loaded;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * The jar (or directory) of this generation
+     * @return The path, null for the empty generation
+     */
+    Path getJarPath() {
+        return index == null ? null : index.getPath();
+    }
+
+    /**
+     * Close the jars of the generations older than this one, once this one
+     * is in use: a jar is opened again only if a running command defines a
+     * class or reads a resource from it
+     * @param previous The generation replaced by this one
+     */
+    void closeOlderJars(CommandClassLoader previous) {
+        Set<CommandClassLoader> older = new HashSet<>(owners.values());
+        older.add(previous);
+        older.remove(this);
+        for (CommandClassLoader g : older) {
+            if (g.index != null) {
+                try {
+                    g.index.close();
+                } catch (IOException ex) {
+                    logger.warn(String.format("Cannot close %s, message: %s", g.index.getPath(), ex.getMessage()));
+                }
+            }
+        }
+    }
+
+    /**
+     * A hash of the content of the jar of this generation, computed from the
+     * hashes of its classes
+     * @return The hash as an hexadecimal string, the same for the same classes
+     */
+    String getContentHash() {
+        String hash = contentHash;
+        if (hash == null) {
+            MessageDigest digest = Fingerprint.newDigest();
+            for (Map.Entry<String, String> entry : new TreeMap<>(hashes).entrySet()) {
+                digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                digest.update(entry.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+            contentHash = hash = Fingerprint.toHex(digest.digest());
+        }
+        return hash;
+    }
+
+    /**
+     * @return The classes added or modified in this generation
+     */
+    Set<String> getChangedClasses() {
+        return changed;
+    }
+
+    /**
+     * @return The unchanged classes redefined because they depend on changed ones
+     */
+    Set<String> getDependentClasses() {
+        return dependents;
+    }
+
+    /**
+     * @return The classes of the previous generation no longer in the jar
+     */
+    Set<String> getRemovedClasses() {
+        return removed;
+    }
+
+    /**
+     * @return The number of classes defined so far by this generation
+     */
+    int getDefinedCount() {
+        return changed.size() + dependents.size() - pending.size();
+    }
+
+    /**
+     * @return The number of classes reused from previous generations
+     */
+    int getReusedCount() {
+        return owners.size() - changed.size() - dependents.size();
+    }
+}
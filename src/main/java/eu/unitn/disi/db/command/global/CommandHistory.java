@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+import static org.apache.log4j.Logger.getLogger;
+
+/**
+ * The last commands of the console, kept in a ring buffer of fixed capacity
+ * and appended to a log file, so that the history survives the console. The
+ * log is read the first time the history is used and rewritten with the last
+ * commands when it grows past twice the capacity. The log is shared by the
+ * consoles of the user: appends and rewrites hold a lock on a separate file
+ * (the log is replaced by a rewrite), and the log is opened at each append, so
+ * no console writes to a replaced log. Each line is indexed by its last occurrence, so
+ * that the distinct commands are listed without rescanning the history. The
+ * resources used by each command are recorded, to compare them when the
+ * commands are replayed.
+ * <p>
+ * The capacity is given by the system property {@value #SIZE_PROPERTY}
+ * (default {@value #DEFAULT_SIZE}), the log by {@value #FILE_PROPERTY}
+ * (default ~/.dcmd/history).
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+final class CommandHistory {
+    public static final String SIZE_PROPERTY = "dcmd.history.size";
+    public static final String FILE_PROPERTY = "dcmd.history.file";
+    public static final int DEFAULT_SIZE = 1000;
+    private static final Logger logger = getLogger(CommandHistory.class);
+    private static final long FLUSH_INTERVAL = 1000;
+    private static final int RECORD_FIELDS = 5;
+
+    /**
+     * A command of the history with the resources it used: wall and cpu time
+     * in nanoseconds and allocated bytes (-1 if not measured)
+     */
+    static final class Entry {
+        private final String line;
+        private final long time;
+        private final long wall;
+        private final long cpu;
+        private final long allocated;
+
+        private Entry(String line, long time, long wall, long cpu, long allocated) {
+            this.line = line;
+            this.time = time;
+            this.wall = wall;
+            this.cpu = cpu;
+            this.allocated = allocated;
+        }
+
+        String getLine() {
+            return line;
+        }
+
+        long getTime() {
+            return time;
+        }
+
+        long getWall() {
+            return wall;
+        }
+
+        long getCpu() {
+            return cpu;
+        }
+
+        long getAllocated() {
+            return allocated;
+        }
+
+        String[] getCommand() {
+            return ExecutionService.tokenizeCommand(line);
+        }
+    }
+
+    private final Path file;
+    private final Path lockFile;
+    private final Entry[] ring;
+    private final Map<String, Long> latest;
+    private final StringBuilder pending;
+    private long next;
+    private boolean loaded;
+    private boolean persistent;
+    private long lastFlush;
+    private long records;
+
+    CommandHistory() {
+        this(Paths.get(System.getProperty(FILE_PROPERTY, Paths.get(System.getProperty("user.home"), ".dcmd", "history").toString())),
+                Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+    }
+
+    CommandHistory(Path file, int capacity) {
+        this.file = file;
+        this.lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        this.ring = new Entry[Math.max(1, capacity)];
+        this.latest = new HashMap<>();
+        this.pending = new StringBuilder();
+    }
+
+    /*
+     * Read the log the first time the history is used, not at the start of
+     * the console
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            synchronized (CommandHistory.class) {
+                FileLock lock = lock();
+                try {
+                    if (Files.exists(file)) {
+                        for (Entry entry : read(file)) {
+                            push(entry);
+                            records++;
+                        }
+                    }
+                } finally {
+                    lock.channel().close();
+                }
+            }
+            if (records > 2 * ring.length) {
+                compact();
+            }
+            persistent = true;
+            lastFlush = System.currentTimeMillis();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::close, "history-flush"));
+        } catch (IOException ex) {
+            logger.warn(String.format("Cannot use the history file %s, the history will not be saved, message: %s", file, ex.getMessage()));
+        }
+    }
+
+    /**
+     * Read the commands of a history log (e.g., a copy of the console log)
+     * @param file The log
+     * @return The commands, the oldest first
+     * @throws IOException If the log cannot be read
+     */
+    static List<Entry> read(Path file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        String[] fields;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            for (String record = reader.readLine(); record != null; record = reader.readLine()) {
+                fields = record.split("\t", -1);
+                try {
+                    if (fields.length == RECORD_FIELDS) {
+                        entries.add(new Entry(unescape(fields[4]), Long.parseLong(fields[0]), Long.parseLong(fields[1]), 
+                                Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                    } else if (fields.length == 2) {
+                        entries.add(new Entry(unescape(fields[1]), Long.parseLong(fields[0]), -1, -1, -1));
+                    }
+                } catch (NumberFormatException ex) {
+                    //A record cut by a crash
+                }
+            }
+        }
+        return entries;
+    }
+
+    /*
+     * The lock of the log, among the processes (the lock file) and the
+     * histories of this process, since a file lock cannot be taken twice by
+     * the same process. Released by closing its channel.
+     */
+    private FileLock lock() throws IOException {
+        FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            return channel.lock();
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /*
+     * Append the pending records, opening the log again: it may have been
+     * replaced by another console
+     */
+    private void flush() throws IOException {
+        if (pending.length() == 0) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(pending.toString().getBytes(StandardCharsets.UTF_8));
+        synchronized (CommandHistory.class) {
+            FileLock lock = lock();
+            try (FileChannel log = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                while (bytes.hasRemaining()) {
+                    log.write(bytes);
+                }
+            } finally {
+                lock.channel().close();
+            }
+        }
+        pending.setLength(0);
+    }
+
+    /*
+     * Rewrite the log with its last commands, read again under the lock, so
+     * that the commands appended by the other consoles are kept
+     */
+    private void compact() throws IOException {
+        synchronized (CommandHistory.class) {
+            FileLock lock = lock();
+            try {
+                List<Entry> entries = Files.exists(file) ? read(file) : new ArrayList<>();
+                Path tmp = Files.createTempFile(file.getParent() != null ? file.getParent() : Paths.get("."), "history", ".tmp");
+                try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                    for (Entry entry : entries.subList(Math.max(0, entries.size() - ring.length), entries.size())) {
+                        writer.write(format(entry));
+                    }
+                } catch (IOException ex) {
+                    Files.deleteIfExists(tmp);
+                    throw ex;
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                records = Math.min(entries.size(), ring.length);
+            } finally {
+                lock.channel().close();
+            }
+        }
+    }
+
+    private void push(Entry entry) {
+        int slot = (int) (next % ring.length);
+        Entry evicted = ring[slot];
+        if (evicted != null && Long.valueOf(next - ring.length).equals(latest.get(evicted.line))) {
+            latest.remove(evicted.line);
+        }
+        ring[slot] = entry;
+        latest.put(entry.line, next++);
+    }
+
+    /**
+     * Append a command to the history and to the log. The log is flushed at
+     * most once per second and when the console exits.
+     * @param line The command line
+     * @param wall The running time in nanoseconds
+     * @param cpu The cpu time in nanoseconds, -1 if not measured
+     * @param allocated The allocated bytes, -1 if not measured
+     */
+    synchronized void add(String line, long wall, long cpu, long allocated) {
+        Entry entry = new Entry(line, System.currentTimeMillis(), wall, cpu, allocated);
+        load();
+        push(entry);
+        if (persistent) {
+            try {
+                pending.append(format(entry));
+                if (++records > 2 * ring.length) {
+                    flush();
+                    compact();
+                    lastFlush = entry.time;
+                } else if (entry.time - lastFlush >= FLUSH_INTERVAL) {
+                    flush();
+                    lastFlush = entry.time;
+                }
+            } catch (IOException ex) {
+                persistent = false;
+                logger.warn(String.format("Cannot write the history file %s, the history will not be saved, message: %s", file, ex.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * The most recent commands, the last one first
+     * @param count The maximum number of commands
+     * @param distinct True to skip the older occurrences of the same line
+     * @param filter Only the lines containing this text, null for all
+     * @return The commands
+     */
+    synchronized List<Entry> recent(int count, boolean distinct, String filter) {
+        List<Entry> entries = new ArrayList<>();
+        Entry entry;
+        load();
+        for (long seq = next - 1; seq >= Math.max(0, next - ring.length) && entries.size() < count; seq--) {
+            entry = ring[(int) (seq % ring.length)];
+            if ((!distinct || Long.valueOf(seq).equals(latest.get(entry.line))) && (filter == null || entry.line.contains(filter))) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * True if the line is in the history
+     * @param line The command line
+     * @return True if it has been executed among the last commands
+     */
+    synchronized boolean contains(String line) {
+        load();
+        return latest.containsKey(line);
+    }
+
+    synchronized int size() {
+        load();
+        return (int) Math.min(next, ring.length);
+    }
+
+    /**
+     * Forget all the commands, also in the log
+     */
+    synchronized void clear() {
+        load();
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = null;
+        }
+        latest.clear();
+        next = 0;
+        records = 0;
+        pending.setLength(0);
+        if (!persistent) {
+            return;
+        }
+        try {
+            synchronized (CommandHistory.class) {
+                FileLock lock = lock();
+                try {
+                    FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE).close();
+                } finally {
+                    lock.channel().close();
+                }
+            }
+        } catch (IOException ex) {
+            persistent = false;
+            logger.warn(String.format("Cannot clear the history file %s, message: %s", file, ex.getMessage()));
+        }
+    }
+
+    /**
+     * The cpu time of the current thread
+     * @return The time in nanoseconds, -1 if not supported
+     */
+    static long threadCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * The bytes allocated so far by the current thread
+     * @return The bytes, -1 if not supported
+     */
+    static long threadAllocatedBytes() {
+        com.sun.management.ThreadMXBean allocations = Bench.allocationBean(ManagementFactory.getThreadMXBean());
+        return allocations != null ? allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    synchronized void close() {
+        if (persistent) {
+            try {
+                flush();
+            } catch (IOException ex) {
+                logger.warn(String.format("Cannot write the history file %s, message: %s", file, ex.getMessage()));
+            }
+            persistent = false;
+        }
+    }
+
+    private static String format(Entry entry) {
+        return String.format("%d\t%d\t%d\t%d\t%s\n", entry.time, entry.wall, entry.cpu, entry.allocated, escape(entry.line));
+    }
+
+    private static String escape(String line) {
+        return line.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String record) {
+        StringBuilder line = new StringBuilder(record.length());
+        char c;
+        for (int i = 0; i < record.length(); i++) {
+            c = record.charAt(i);
+            if (c == '\\' && i + 1 < record.length()) {
+                c = record.charAt(++i);
+                line.append(c == 't' ? '\t' : c == 'n' ? '\n' : c);
+            } else {
+                line.append(c);
+            }
+        }
+        return line.toString();
+    }
+}
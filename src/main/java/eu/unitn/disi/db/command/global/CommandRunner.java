@@ -18,6 +18,7 @@
 package eu.unitn.disi.db.command.global;
 
 import static eu.unitn.disi.db.command.global.ExecutionService.getInstance;
+import static java.lang.management.ManagementFactory.getRuntimeMXBean;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -43,5 +44,8 @@ public final class CommandRunner {
         } else {
             status.runCommand(args);
         }
+        if (Boolean.getBoolean(ConsoleHandler.TIMING_PROPERTY)) {
+            status.out().printf("Completed in %d ms from the start of the JVM\n", getRuntimeMXBean().getUptime());
+        }
     }
 }
@@ -19,7 +19,6 @@ package eu.unitn.disi.db.command.global;
 
 import static eu.unitn.disi.db.command.global.CommandRunner.QUITS;
 import eu.unitn.disi.db.command.global.ExecutionService.CommandError;
-import eu.unitn.disi.db.mutilities.Pair;
 import eu.unitn.disi.db.command.util.Tokenizer;
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -29,6 +28,7 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Scanner;
 import java.util.Set;
+import static java.lang.management.ManagementFactory.getRuntimeMXBean;
 import org.apache.log4j.Logger;
 import static org.apache.log4j.Logger.getLogger;
 
@@ -43,6 +43,10 @@ public class ConsoleHandler {
     private final String WELCOME_MESSAGE;
     private final String EXIT_MESSAGE;
     private static final String CONSOLE_LINE = "dcmd> ";
+    /**
+     * Set this property to true to print the startup time
+     */
+    public static final String TIMING_PROPERTY = "dcmd.timing";
     private static final Logger logger = getLogger(ConsoleHandler.class);
     
     
@@ -83,6 +87,19 @@ public class ConsoleHandler {
     }
 
 
+    /**
+     * Load the classes of the console without user interaction, to record 
+     * them in a class data sharing archive
+     * @param batch A batch file to be executed, or null
+     */
+    public void runTraining(String batch) {
+        ExecutionService global = ExecutionService.getInstance();
+        global.runCommand(ExecutionService.tokenizeCommand("help"), true);
+        if (batch != null) {
+            global.runCommand(new String[]{"batch", batch}, true);
+        }
+    }
+
     public void runConsole() {
         ExecutionService global = ExecutionService.getInstance();
         PrintStream out = global.out();
@@ -92,8 +109,12 @@ public class ConsoleHandler {
         String[] tokenizedCommand, params;
         Object retval = null; 
         String mainCommand;
+        long wall, cpu, allocated;
         out.println(WELCOME_MESSAGE);
         out.println();
+        if (Boolean.getBoolean(TIMING_PROPERTY)) {
+            out.printf("Console ready in %d ms\n", getRuntimeMXBean().getUptime());
+        }
         out.print(CONSOLE_LINE);
 
         try {
@@ -104,18 +125,27 @@ public class ConsoleHandler {
                     mainCommand = tokenizedCommand[0];
                     
                     if (null != mainCommand) {
+                        wall = 0;
+                        cpu = -1;
+                        allocated = -1;
                         switch (mainCommand) {
                             case "\\?": //global help
                                 global.printHelp("", "Available console commands\n", true);
                                 break;                                   
                             default:{ 
+                                allocated = CommandHistory.threadAllocatedBytes();
+                                cpu = CommandHistory.threadCpuTime();
+                                wall = System.nanoTime();
                                 retval = global.runCommand(tokenizedCommand, true);
+                                wall = System.nanoTime() - wall;
+                                cpu = cpu >= 0 ? CommandHistory.threadCpuTime() - cpu : -1;
+                                allocated = allocated >= 0 ? CommandHistory.threadAllocatedBytes() - allocated : -1;
                                 System.gc();
                             }     
                         }
                         if (retval == null || !(retval instanceof CommandError) || CommandError.NOT_EXISTS != (CommandError)retval) {
                             if (!"hist".equals(mainCommand.toLowerCase())) {
-                                global.history.add(new Pair<>(line, tokenizedCommand));
+                                global.history.add(line, wall, cpu, allocated);
                             }
                         }
                     }
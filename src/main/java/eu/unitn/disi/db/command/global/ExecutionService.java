@@ -24,25 +24,31 @@ import eu.unitn.disi.db.command.exceptions.ArgumentDeclarationException;
 import eu.unitn.disi.db.command.exceptions.ExecutionException;
 import eu.unitn.disi.db.command.exceptions.WrongParameterException;
 import eu.unitn.disi.db.mutilities.LoggableObject;
-import eu.unitn.disi.db.mutilities.Pair;
 import eu.unitn.disi.db.command.util.Tokenizer;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import static java.lang.System.currentTimeMillis;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.util.ArrayList;
+import java.util.Arrays;
 import static java.util.Arrays.copyOfRange;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.reflections.Reflections;
 import org.reflections.scanners.SubTypesScanner;
-import org.xeustechnologies.jcl.JarClassLoader;
-import org.xeustechnologies.jcl.JclObjectFactory;
 
 /**
  * This class keeps the status of the system in terms of commands and global
@@ -52,12 +58,17 @@ import org.xeustechnologies.jcl.JclObjectFactory;
  */
 final class ExecutionService extends LoggableObject {
 
-    private final Map<String, Class<? extends Command>> loadedCommands;
+    private volatile Map<String, Class<? extends Command>> loadedCommands;
     private final Map<String, Class<? extends Command>> consoleCommands;
-    private final Map<String, Object> dynamicObjects;
-    final List<Pair<String, String[]>> history;
-    JarClassLoader commandLoader; 
-    private PrintStream out = System.out;
+    private final Map<String, ObjectVersion> dynamicObjects;
+    private final Map<String, PendingObject> pendingObjects;
+    private final Map<String, String> fingerprints;
+    private final Map<String, String> loaders;
+    private final ExecutorService loaderPool;
+    final CommandHistory history;
+    volatile CommandClassLoader commandLoader; 
+    JarWatcher jarWatcher;
+    private volatile PrintStream out = System.out;
     private InputStream in = System.in; 
     private static final String EMPTY_COMMAND = "                     ";
     private static final String NOT_EXISTING_ERROR = "Hey, command '%s' doesn't exist, try again ;-)";
@@ -69,14 +80,52 @@ final class ExecutionService extends LoggableObject {
         ERROR, 
         NOT_EXISTS
     }
+
+    public enum LoadOption {
+        /**
+         * Reuse an object (or a snapshot) loaded with the same fingerprint
+         */
+        REUSE,
+        /**
+         * Fingerprint the content of the input files instead of their size
+         * and modification time
+         */
+        HASH_CONTENT,
+        /**
+         * Store a snapshot of the loaded object on disk
+         */
+        SNAPSHOT
+    }
     
+    /*
+     * An object that is being loaded in background by the loader pool
+     */
+    private static class PendingObject {
+        final String command; 
+        final long startTime; 
+        FutureTask<Object> task; 
+
+        PendingObject(String command) {
+            this.command = command;
+            this.startTime = currentTimeMillis();
+        }
+    }
     
     private ExecutionService() {
+        final AtomicInteger loaderThreads = new AtomicInteger();
         loadedCommands = new HashMap<>();
-        dynamicObjects = new HashMap<>();
+        dynamicObjects = new ConcurrentHashMap<>();
+        pendingObjects = new ConcurrentHashMap<>();
+        fingerprints = new ConcurrentHashMap<>();
+        loaders = Collections.synchronizedMap(new LinkedHashMap<>());
+        loaderPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), (Runnable r) -> {
+            Thread t = new Thread(r, "loader-" + loaderThreads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
         consoleCommands = new HashMap<>();
-        commandLoader = new JarClassLoader(); 
-        history = new ArrayList<>();
+        commandLoader = new CommandClassLoader(); 
+        history = new CommandHistory();
         
         Reflections reflections = new Reflections("", new SubTypesScanner(false));
         ConsoleCommand consoleCmdAnn;
@@ -109,9 +158,32 @@ final class ExecutionService extends LoggableObject {
         return Singleton.INSTANCE;
     }
 
-    public void addExecutableCommand(String name, Class<? extends Command> c)
+    public synchronized void addExecutableCommand(String name, Class<? extends Command> c)
             throws ArgumentDeclarationException {
-        addCommand(name.toLowerCase(), c, loadedCommands);
+        Map<String, Class<? extends Command>> commands = new HashMap<>(loadedCommands);
+        addCommand(name.toLowerCase(), c, commands);
+        loadedCommands = commands;
+    }
+
+    /**
+     * Replace all the executable commands and their loader at once. Commands 
+     * started before keep running on the old classes. 
+     * @param commands The new commands
+     * @param loader The loader of the commands
+     * @throws ArgumentDeclarationException If a command is not well defined
+     * @throws ExecutionException If a command has the name of a console command
+     */
+    synchronized void replaceCommands(Collection<Class<? extends Command>> commands, CommandClassLoader loader) 
+            throws ArgumentDeclarationException, ExecutionException {
+        Map<String, Class<? extends Command>> next = new HashMap<>();
+        for (Class<? extends Command> c : commands) {
+            if (isConsoleCommand(c.getSimpleName())) {
+                throw new ExecutionException("Cannot load the jar. Command %s is a duplicate of a console command, please change the name", c.getSimpleName());
+            }
+            addCommand(c.getSimpleName(), c, next);
+        }
+        commandLoader = loader;
+        loadedCommands = next;
     }
 
     private void addCommand(String name, Class<? extends Command> c, Map<String, Class<? extends Command>> commands)
@@ -120,25 +192,322 @@ final class ExecutionService extends LoggableObject {
         commands.put(name.toLowerCase(), c);
     }
 
-    public void removeExecutableCommand(String name) {
-        loadedCommands.remove(name);
+    public synchronized void removeExecutableCommand(String name) {
+        Map<String, Class<? extends Command>> commands = new HashMap<>(loadedCommands);
+        commands.remove(name);
+        loadedCommands = commands;
     }
 
-    public void clearCommands() {
-        loadedCommands.clear();
+    public synchronized void clearCommands() {
+        loadedCommands = new HashMap<>();
     }
     
     public void clearHistory() {
         history.clear();
     }
 
+    /**
+     * Returns a snapshot of the current version of the dynamic objects
+     * @return A map from variable names to objects
+     */
     public Map<String, Object> getDynamicObjects() {
-        return dynamicObjects;
+        Map<String, Object> objects = new HashMap<>();
+        for (Map.Entry<String, ObjectVersion> entry : dynamicObjects.entrySet()) {
+            objects.put(entry.getKey(), entry.getValue().getValue());
+        }
+        return objects;
+    }
+
+    /**
+     * The fingerprint of the loader of an object
+     * @param variable The name of the variable
+     * @return The fingerprint or null if the object cannot be reused
+     */
+    String getFingerprint(String variable) {
+        return fingerprints.get(variable);
+    }
+
+    /**
+     * The lines that load the current objects again, in the order they were
+     * loaded
+     * @return A map (variable, line), the line is null for the objects that
+     * cannot be rebuilt
+     */
+    Map<String, String> getLoaders() {
+        Map<String, String> lines = new LinkedHashMap<>();
+        synchronized (loaders) {
+            lines.putAll(loaders);
+        }
+        for (String variable : dynamicObjects.keySet()) {
+            if (!lines.containsKey(variable)) {
+                lines.put(variable, null);
+            }
+        }
+        lines.keySet().retainAll(dynamicObjects.keySet());
+        return lines;
+    }
+
+    Class<? extends Command> getCommandClass(String name) {
+        return loadedCommands.get(name.toLowerCase());
+    }
+
+    public boolean hasObject(String variable) {
+        return dynamicObjects.containsKey(variable);
+    }
+
+    /**
+     * Returns the current version of an object
+     * @param variable The name of the variable
+     * @return The object or null if the variable does not exist
+     */
+    public Object getObject(String variable) {
+        ObjectVersion current = dynamicObjects.get(variable);
+        return current != null ? current.getValue() : null;
+    }
+
+    /**
+     * Run a loader command and store the loaded object into the variable
+     * @param variable The name of the variable
+     * @param command The loader command (with its parameters)
+     * @param options Whether to reuse objects with the same fingerprint and 
+     * to store snapshots
+     * @return The loaded object
+     * @throws ExecutionException If the loader fails or does not load anything
+     */
+    public Object loadObject(String variable, String command, LoadOption... options) throws ExecutionException {
+        Set<LoadOption> opts = EnumSet.noneOf(LoadOption.class);
+        opts.addAll(Arrays.asList(options));
+        String[] tokenizedCommand = tokenizeCommand(command);
+        String fingerprint = fingerprint(tokenizedCommand, opts.contains(LoadOption.HASH_CONTENT));
+        Object retval;
+        
+        if (fingerprint != null && opts.contains(LoadOption.REUSE)) {
+            for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+                retval = getObject(entry.getKey());
+                if (fingerprint.equals(entry.getValue()) && retval != null) {
+                    info("Inputs of %s did not change, reusing object %s", command, entry.getKey());
+                    setObject(variable, retval, fingerprint, loaderLine(variable, command));
+                    return retval;
+                }
+            }
+            try {
+                retval = ObjectSnapshots.read(fingerprint, commandLoader);
+                if (retval != null) {
+                    info("Inputs of %s did not change, object restored from snapshot", command);
+                    setObject(variable, retval, fingerprint, loaderLine(variable, command));
+                    return retval;
+                }
+            } catch (IOException | ClassNotFoundException ex) {
+                warn("Cannot read the snapshot of %s, reloading it, message: %s", command, ex.getMessage());
+            }
+        }
+        retval = runCommand(tokenizedCommand);
+        if (retval instanceof CommandError) {
+            throw new ExecutionException("Execution error on calling command: %s", command); 
+        }
+        if (retval == null) {
+            throw new ExecutionException("Command %s did not load any object", command);
+        }
+        if (fingerprint != null && opts.contains(LoadOption.SNAPSHOT)) {
+            try {
+                if (!ObjectSnapshots.write(fingerprint, retval)) {
+                    warn("Object %s is not serializable, no snapshot stored", variable);
+                }
+            } catch (IOException ex) {
+                warn("Cannot write the snapshot of %s, message: %s", variable, ex.getMessage());
+            }
+        }
+        setObject(variable, retval, fingerprint, loaderLine(variable, command));
+        return retval;
+    }
+
+    private static String loaderLine(String variable, String command) {
+        return String.format("obj %s (%s)", variable, command);
+    }
+
+    /**
+     * Publish a new version of an object into a variable. Commands running on
+     * the previous version complete with it, the previous version is then 
+     * released (closed, if it is {@link AutoCloseable}). 
+     * @param variable The name of the variable
+     * @param value The object
+     * @param fingerprint The fingerprint of the loader or null if the object 
+     * cannot be reused
+     */
+    public void setObject(final String variable, final Object value, String fingerprint) {
+        setObject(variable, value, fingerprint, null);
+    }
+
+    /**
+     * Publish a new version of an object into a variable, recording the
+     * console line that builds it again (e.g., in the batch worker processes)
+     * @param variable The name of the variable
+     * @param value The object
+     * @param fingerprint The fingerprint of the loader or null
+     * @param loader The line that loads the object or null if the object 
+     * cannot be rebuilt
+     */
+    void setObject(final String variable, final Object value, String fingerprint, String loader) {
+        final ObjectVersion[] previous = new ObjectVersion[1];
+        ObjectVersion current = dynamicObjects.compute(variable, (String name, ObjectVersion old) -> {
+            previous[0] = old;
+            return new ObjectVersion(name, value, old != null ? old.getVersion() + 1 : 1, this::releaseVersion);
+        });
+        if (fingerprint != null) {
+            fingerprints.put(variable, fingerprint);
+        } else {
+            fingerprints.remove(variable);
+        }
+        synchronized (loaders) {
+            //Ordered by load, objects may be loaded from other objects
+            loaders.remove(variable);
+            if (loader != null) {
+                loaders.put(variable, loader);
+            }
+        }
+        if (previous[0] != null) {
+            debug("Published version %d of %s, previous version has %d readers", current.getVersion(), variable, previous[0].getReaders());
+            previous[0].retire();
+        }
+    }
+
+    private void releaseVersion(ObjectVersion version) {
+        Object value = version.getValue();
+        //The same object may be shared by other variables
+        for (ObjectVersion current : dynamicObjects.values()) {
+            if (current.getValue() == value) {
+                return;
+            }
+        }
+        if (value instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) value).close();
+                info("Released version %d of %s", version.getVersion(), version.getVariable());
+            } catch (Exception ex) {
+                warn("Cannot release version %d of %s, message: %s", version.getVersion(), version.getVariable(), ex.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Acquire the current version of the objects used by a command, waiting 
+     * for those that are loaded for the first time in background. 
+     */
+    private Map<String, ObjectVersion> acquireObjects(String[] args) throws ExecutionException {
+        Map<String, ObjectVersion> acquired = new HashMap<>();
+        ObjectVersion version;
+        for (int i = 1; i < args.length; i++) {
+            if (acquired.containsKey(args[i])) {
+                //Used twice by the command, the version is acquired once
+                continue;
+            }
+            if (!dynamicObjects.containsKey(args[i]) && pendingObjects.containsKey(args[i])) {
+                info("Waiting for object %s to be loaded", args[i]);
+                waitForObject(args[i]);
+            }
+            do {
+                version = dynamicObjects.get(args[i]);
+            } while (version != null && !version.acquire());
+            if (version != null) {
+                acquired.put(args[i], version);
+            }
+        }
+        return acquired;
+    }
+
+    private String fingerprint(String[] command, boolean hashContent) {
+        Class<? extends Command> c = command.length > 0 ? loadedCommands.get(command[0].toLowerCase()) : null;
+        if (c == null) {
+            return null;
+        }
+        try {
+            return Fingerprint.of(command, c, hashContent);
+        } catch (IOException ex) {
+            warn("Cannot compute the fingerprint of %s, message: %s", command[0], ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Submit a loader command to the loader pool, the variable can be used 
+     * as soon as it is loaded, commands using it will wait for it. 
+     * @param variable The name of the variable
+     * @param command The loader command (with its parameters)
+     * @param options The load options
+     */
+    public void loadObjectInBackground(final String variable, final String command, final LoadOption... options) {
+        final PendingObject pending = new PendingObject(command);
+        pending.task = new FutureTask<>(() -> {
+            try {
+                Object retval = loadObject(variable, command, options);
+                info("Object %s loaded in %dms", variable, currentTimeMillis() - pending.startTime);
+                return retval;
+            } catch (ExecutionException ex) {
+                error("Object %s failed to load after %dms", variable, currentTimeMillis() - pending.startTime);
+                throw ex;
+            } finally {
+                pendingObjects.remove(variable, pending);
+            }
+        });
+        pendingObjects.put(variable, pending);
+        loaderPool.execute(pending.task);
+    }
+
+    /**
+     * Wait until the variable has been loaded, if a background load is in 
+     * progress, otherwise return immediately
+     * @param variable The name of the variable
+     * @return The object stored in the variable, null if it does not exist
+     * @throws ExecutionException If the background load failed
+     */
+    public Object waitForObject(String variable) throws ExecutionException {
+        PendingObject pending = pendingObjects.get(variable);
+        if (pending != null) {
+            try {
+                return pending.task.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ExecutionException("Interrupted while waiting for object %s", ex, variable);
+            } catch (java.util.concurrent.ExecutionException ex) {
+                throw new ExecutionException("Object %s cannot be loaded, message: %s", ex.getCause(), variable, ex.getCause().getMessage());
+            }
+        }
+        return getObject(variable);
+    }
+
+    /**
+     * Returns the variables being loaded in background along with the time 
+     * the load started (in milliseconds)
+     * @return A map from variable names to the loading command start time
+     */
+    public Map<String, Long> getPendingObjects() {
+        Map<String, Long> pending = new LinkedHashMap<>();
+        for (Map.Entry<String, PendingObject> entry : pendingObjects.entrySet()) {
+            pending.put(entry.getKey(), entry.getValue().startTime);
+        }
+        return pending;
+    }
+
+    public String getPendingCommand(String variable) {
+        PendingObject pending = pendingObjects.get(variable);
+        return pending != null ? pending.command : null;
+    }
+
+    public boolean isPending(String variable) {
+        return pendingObjects.containsKey(variable);
     }
 
     public PrintStream out() {
         return out;
     }
+
+    /**
+     * Redirect the output of the console
+     * @param out The new output stream
+     */
+    void setOut(PrintStream out) {
+        this.out = out;
+    }
     
     public InputStream in() {
         return in; 
@@ -149,18 +518,40 @@ final class ExecutionService extends LoggableObject {
     }
 
     public Object runCommand(String[] args, boolean console) {
-        return runCommand(args, dynamicObjects, console);
+        return runCommand(args, null, console);
     }
 
+    /**
+     * Run a command
+     * @param args The command name followed by its parameters
+     * @param dynamicObjects The objects available to the command, if null the 
+     * current version of the console objects is used
+     * @param console True if the command is a console command
+     * @return The object loaded by a loader, or an error
+     */
     public Object runCommand(String[] args, Map<String, Object> dynamicObjects, boolean console) {
         Object obj = new Object();
         Command c;
+        Map<String, ObjectVersion> acquired = null;
+        Thread current = Thread.currentThread();
+        ClassLoader contextLoader = current.getContextClassLoader();
         try {
             if (console) {
                 c = (Command) consoleCommands.get(args[0].toLowerCase()).newInstance();
             } else {
-                JclObjectFactory commandFactory = JclObjectFactory.getInstance();
-                c = (Command) commandFactory.create(commandLoader, loadedCommands.get(args[0].toLowerCase()).getName());            
+                c = loadedCommands.get(args[0].toLowerCase()).newInstance();
+                //Libraries looking up classes through the context see the command jar
+                current.setContextClassLoader(c.getClass().getClassLoader());
+            }
+            if (dynamicObjects == null && console) {
+                dynamicObjects = getDynamicObjects();
+            } else if (dynamicObjects == null) {
+                //The command works on the versions available when it starts
+                acquired = acquireObjects(args);
+                dynamicObjects = new HashMap<>();
+                for (Map.Entry<String, ObjectVersion> entry : acquired.entrySet()) {
+                    dynamicObjects.put(entry.getKey(), entry.getValue().getValue());
+                }
             }
             if (args.length > 1) {
                 c.exec(copyOfRange(args, 1, args.length), dynamicObjects);
@@ -182,6 +573,13 @@ final class ExecutionService extends LoggableObject {
         } catch (Exception ex) {
             fatal("Some other problem occurred on command call, message: %s ", ex, ex.getMessage());
             obj = CommandError.ERROR;
+        } finally {
+            current.setContextClassLoader(contextLoader);
+            if (acquired != null) {
+                for (ObjectVersion version : acquired.values()) {
+                    version.release();
+                }
+            }
         }
         return obj;
     }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Compute the fingerprint of a loader invocation: the loader class, its
+ * arguments and, for the arguments that are existing files, their size and
+ * modification time (or their content). The content of the jar defining a
+ * loaded command is part of the fingerprint, so that reloading a changed
+ * loader does not reuse the objects built by the old code.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+final class Fingerprint {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Fingerprint() {
+    }
+
+    /**
+     * Compute the fingerprint of a command
+     * @param command The tokenized command, the first token is the command name
+     * @param commandClass The class of the command
+     * @param hashContent True to hash the content of the files instead of
+     * using their size and modification time
+     * @return The fingerprint as an hexadecimal string
+     * @throws IOException If some file cannot be read
+     */
+    static String of(String[] command, Class<? extends Command> commandClass, boolean hashContent) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, hashContent ? "content" : "stat");
+        update(digest, commandClass.getName());
+        if (commandClass.getClassLoader() instanceof CommandClassLoader) {
+            update(digest, ((CommandClassLoader) commandClass.getClassLoader()).getContentHash());
+        }
+        Path file;
+        for (int i = 1; i < command.length; i++) {
+            update(digest, command[i]);
+            file = asFile(command[i]);
+            if (file != null) {
+                if (hashContent) {
+                    hashFile(digest, file);
+                } else {
+                    update(digest, Long.toString(Files.size(file)));
+                    update(digest, Long.toString(Files.getLastModifiedTime(file).toMillis()));
+                }
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    static void hashFile(MessageDigest digest, Path file) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        try (InputStream in = Files.newInputStream(file)) {
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static Path asFile(String argument) {
+        try {
+            Path p = Paths.get(argument);
+            return Files.isRegularFile(p) ? p : null;
+        } catch (InvalidPathException ex) {
+            return null;
+        }
+    }
+}
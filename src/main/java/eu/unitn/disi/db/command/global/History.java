@@ -20,43 +20,55 @@ package eu.unitn.disi.db.command.global;
 
 import eu.unitn.disi.db.command.CommandInput;
 import eu.unitn.disi.db.command.exceptions.ExecutionException;
-import eu.unitn.disi.db.mutilities.Pair;
+import eu.unitn.disi.db.command.util.FileWriteOperation.Mode;
+import eu.unitn.disi.db.command.util.stats.Statistics;
+import eu.unitn.disi.db.command.util.stats.StatisticsCSVExporter;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.LinkedHashSet;
+import java.util.Collections;
 import java.util.List;
 
 /**
- * Show a history of commands with the possibility of re-execute them
+ * Show a history of commands with the possibility of re-execute them. The 
+ * history is kept across the sessions of the console (see 
+ * {@link CommandHistory}). With -replay the commands are run again and
+ * their running time, cpu time and allocations are compared with the
+ * recorded ones, e.g., to check whether a new jar is slower.
  * @author Davide Mottin <mottin@disi.unitn.eu>
  */
 @ConsoleCommand(
         name = "hist"
 )
 public class History extends Command {
+    private static final double MIN_TIME = 1e6;
+    private static final double MIN_ALLOCATED = 1024 * 1024;
+    private static final String COMMAND = "command";
+    private static final String[] MEASURES = {"wall ms", "cpu ms", "alloc MB"};
+    private static final String REGRESSION = "regression";
     private int numEntries;
     private boolean repetitions;
+    private String filter;
+    private String replay;
+    private double threshold;
+    private String csv;
     
     @Override
     protected void execute() throws ExecutionException {
         ExecutionService global = ExecutionService.getInstance();
         String line; 
         int entry; 
-        List<? extends Pair<String,String[]>> history; 
+        List<CommandHistory.Entry> history; 
         
-        if (repetitions) {
-            history = global.history;
-        } else {
-            LinkedHashSet<HashedPair<String, String[]>> tmp = new LinkedHashSet<>();
-            Pair<String,String[]> cmd; 
-            for (int i = 0; i < numEntries && i < global.history.size(); i++) {
-                cmd = global.history.get(global.history.size() - 1 - i);
-                tmp.add(new HashedPair<>(cmd.getFirst(), cmd.getSecond()));
-            }
-            history = new ArrayList<>(tmp);
+        if (!"".equals(replay)) {
+            replay(global);
+            return;
         }
+        history = global.history.recent(numEntries, !repetitions, "".equals(filter) ? null : filter);
         if (history.isEmpty()) {
             warn("History is empty");
             return; 
@@ -65,16 +77,16 @@ public class History extends Command {
         try {
             BufferedReader in = new BufferedReader(new InputStreamReader(global.in()));
             global.out().print("Choose one of the commands to execute again or 'q' to exit: ");
-            while(!"q".equals(line = in.readLine())) {
+            while ((line = in.readLine()) != null && !"q".equals(line)) {
                 if (line != null && !"".equals(line)) {
                     try {
                         entry = Integer.parseInt(line);
-                        if (entry > numEntries || entry > history.size()) {
+                        if (entry < 1 || entry > history.size()) {
                             error("Invalid entry, please type a valid one");
                         } else {
-                            Object retval = global.runCommand(history.get(entry - 1).getSecond(), true); 
+                            Object retval = global.runCommand(history.get(entry - 1).getCommand(), true); 
                             if (retval == ExecutionService.CommandError.ERROR) {
-                                throw new ExecutionException("Execution error on calling command: %s", history.get(entry - 1).getFirst()); 
+                                throw new ExecutionException("Execution error on calling command: %s", history.get(entry - 1).getLine()); 
                             }
                             break;
                         }
@@ -88,6 +100,117 @@ public class History extends Command {
         }
     }
 
+    /*
+     * Run the commands again, in their order, and compare the resources
+     * they use with the recorded ones
+     */
+    private void replay(ExecutionService global) throws ExecutionException {
+        List<CommandHistory.Entry> recorded;
+        Statistics stats = new Statistics();
+        PrintStream out = global.out();
+        long wall, cpu, allocated;
+        long[] before, now;
+        Object retval;
+        String flag;
+        int regressions = 0, i = 0;
+        
+        if (Files.isRegularFile(Paths.get(replay))) {
+            try {
+                recorded = CommandHistory.read(Paths.get(replay));
+            } catch (IOException ex) {
+                throw new ExecutionException("Cannot read the history %s, message: %s", replay, ex.getMessage());
+            }
+        } else {
+            try {
+                recorded = global.history.recent(Integer.parseInt(replay), false, null);
+                Collections.reverse(recorded);
+            } catch (NumberFormatException ex) {
+                throw new ExecutionException("%s is neither a number of commands nor a history file", replay);
+            }
+        }
+        if (recorded.isEmpty()) {
+            warn("History is empty");
+            return;
+        }
+        stats.addStringField(COMMAND);
+        for (String measure : MEASURES) {
+            stats.addNumericField(measure + " before");
+            stats.addNumericField(measure);
+        }
+        stats.addStringField(REGRESSION);
+        out.printf("Replaying %d commands\n", recorded.size());
+        List<String> rows = new ArrayList<>();
+        for (CommandHistory.Entry entry : recorded) {
+            allocated = CommandHistory.threadAllocatedBytes();
+            cpu = CommandHistory.threadCpuTime();
+            wall = System.nanoTime();
+            retval = global.runCommand(entry.getCommand(), true);
+            wall = System.nanoTime() - wall;
+            cpu = cpu >= 0 ? CommandHistory.threadCpuTime() - cpu : -1;
+            allocated = allocated >= 0 ? CommandHistory.threadAllocatedBytes() - allocated : -1;
+            
+            before = new long[]{entry.getWall(), entry.getCpu(), entry.getAllocated()};
+            now = new long[]{wall, cpu, allocated};
+            flag = retval instanceof ExecutionService.CommandError ? "FAILED" : regressions(before, now);
+            if (!"".equals(flag)) {
+                regressions++;
+            }
+            stats.addStringValue(COMMAND, entry.getLine());
+            for (int m = 0; m < MEASURES.length; m++) {
+                stats.addNumericValue(MEASURES[m] + " before", scale(before[m], m));
+                stats.addNumericValue(MEASURES[m], scale(now[m], m));
+            }
+            stats.addStringValue(REGRESSION, flag);
+            rows.add(String.format("%-4d %-40s %10s %10s %8s %8s %8s  %s", ++i, abbreviate(entry.getLine(), 40), 
+                    format(before[0], 0), format(now[0], 0), change(before[0], now[0]), change(before[1], now[1]), 
+                    change(before[2], now[2]), flag));
+        }
+        out.printf("%-4s %-40s %10s %10s %8s %8s %8s\n", "#", COMMAND, "before ms", "now ms", "wall", "cpu", "alloc");
+        for (String row : rows) {
+            out.println(row);
+        }
+        out.printf("%d of %d commands failed or used more than %.0f%% of the recorded resources\n", regressions, recorded.size(), threshold * 100);
+        if (!"".equals(csv)) {
+            try {
+                new StatisticsCSVExporter(stats, csv, Mode.OVERWRITE).write();
+                out.printf("Comparison exported to %s\n", csv);
+            } catch (IOException ex) {
+                throw new ExecutionException("Cannot export the comparison to %s, message: %s", csv, ex.getMessage());
+            }
+        }
+    }
+
+    /*
+     * The measures above the threshold, ignoring differences within the
+     * timer and allocation noise
+     */
+    private String regressions(long[] before, long[] now) {
+        StringBuilder flag = new StringBuilder();
+        for (int m = 0; m < MEASURES.length; m++) {
+            if (before[m] >= 0 && now[m] >= 0 && now[m] > before[m] * (1 + threshold) 
+                    && now[m] - before[m] > (m == 2 ? MIN_ALLOCATED : MIN_TIME)) {
+                flag.append(flag.length() == 0 ? "SLOWER " : ", ").append(MEASURES[m].split(" ")[0]);
+            }
+        }
+        return flag.toString();
+    }
+
+    private static double scale(long value, int measure) {
+        return value < 0 ? -1 : measure == 2 ? value / (1024.0 * 1024.0) : value / 1e6;
+    }
+
+    private static String format(long value, int measure) {
+        return value < 0 ? "-" : String.format("%.3f", scale(value, measure));
+    }
+
+    private static String change(long before, long now) {
+        return before <= 0 || now < 0 ? "-" : String.format("%+.1f%%", (now - before) * 100.0 / before);
+    }
+
+    private static String abbreviate(String line, int width) {
+        return line.length() <= width ? line : line.substring(0, width - 3) + "...";
+    }
+
     @Override
     protected String commandDescription() {
         return "Show a history of the commands performed so far, allows relaunch of the same command";
@@ -112,34 +235,50 @@ public class History extends Command {
     public void setRepetitions(boolean repetitions) {
         this.repetitions = repetitions;
     }
-    
-    
-    private void showHistory(ExecutionService global, List<? extends Pair<String, String[]>> history) { 
-        for (int i = 0; i < history.size() && i < numEntries; i++) {
-            if (!"hist".equals(history.get(i).getSecond()[0])) {
-                global.out().printf("[%d] %s\n", i + 1, history.get(i).getFirst());
-            }
-        }
+
+    @CommandInput(
+            consoleFormat = "-grep",
+            defaultValue = "", 
+            description = "Show only the commands containing this text", 
+            mandatory = false
+    )
+    public void setFilter(String filter) {
+        this.filter = filter;
     }
     
-    private class HashedPair<A,B> extends Pair<A,B> {
+    @CommandInput(
+            consoleFormat = "-replay",
+            defaultValue = "", 
+            description = "Run again the last N commands (or the commands of a history file) and compare their time and allocations with the recorded ones", 
+            mandatory = false
+    )
+    public void setReplay(String replay) {
+        this.replay = replay;
+    }
 
-        public HashedPair(A first, B second) {
-            super(first, second);
-        }
-        
-        @Override
-        public int hashCode() {
-            return first.hashCode();
-        }
-        
-        @Override
-        public boolean equals(Object obj) {
-            if (obj != null && obj instanceof Pair && first != null) {
-                return first.equals(((Pair)obj).getFirst());
-            }
-            return super.equals(obj);
-        }
+    @CommandInput(
+            consoleFormat = "-threshold",
+            defaultValue = "0.1", 
+            description = "Flag a replayed command slower (or allocating more) than this fraction of the recorded run", 
+            mandatory = false
+    )
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
     }
 
+    @CommandInput(
+            consoleFormat = "-csv",
+            defaultValue = "", 
+            description = "Export the comparison of the replayed commands to a csv file", 
+            mandatory = false
+    )
+    public void setCsv(String csv) {
+        this.csv = csv;
+    }
+
+    private void showHistory(ExecutionService global, List<CommandHistory.Entry> history) { 
+        for (int i = 0; i < history.size(); i++) {
+            global.out().printf("[%d] %s\n", i + 1, history.get(i).getLine());
+        }
+    }
 }
@@ -21,27 +21,40 @@ import eu.unitn.disi.db.command.CommandInput;
 import eu.unitn.disi.db.command.PositionalInput;
 import eu.unitn.disi.db.command.exceptions.ArgumentDeclarationException;
 import eu.unitn.disi.db.command.exceptions.ExecutionException;
-import static eu.unitn.disi.db.command.util.JarLoader.addFile;
+import eu.unitn.disi.db.command.util.JarIndex;
+import static eu.unitn.disi.db.command.util.JarLoader.getLibraryLoader;
+import static java.lang.System.currentTimeMillis;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import org.xeustechnologies.jcl.JarClassLoader;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Load jars and libraries into the current class loader. Allows dynamic
- * loading of new jars. 
+ * loading of new jars. Reloading a jar redefines only the classes that 
+ * changed and the ones depending on them. With -watch the jar is reloaded
+ * in background when it changes.
  * @author Davide Mottin <mottin@disi.unitn.eu>
  */
 @ConsoleCommand(name = "jar")
 public class Jar extends Command {
     private String[] libraryPaths;
     private String jarPath; 
+    private boolean full;
+    private boolean watch;
+    private boolean warm;
     
     
     private static final JarFilter JAR_FILTER = new JarFilter(); 
@@ -60,8 +73,6 @@ public class Jar extends Command {
     protected void execute() throws ExecutionException {        
         ExecutionService global = ExecutionService.getInstance();
         PrintStream out = global.out();
-        Map<String, Class<? extends Command>> commands; 
-        LocalLoader loader;
                 
         try {
             if (libraryPaths != null) {
@@ -72,8 +83,11 @@ public class Jar extends Command {
                         if (libDir.isDirectory() && libDir.canRead()) {
                             File[] files = libDir.listFiles(JAR_FILTER);
                             for (File file : files) {
-                                addFile(file);
-                                out.printf("Successfully loaded library %s\n", file.getName());
+                                if (getLibraryLoader().addLibrary(file.toURI().toURL())) {
+                                    out.printf("Successfully loaded library %s\n", file.getName());
+                                } else {
+                                    out.printf("Library %s already loaded\n", file.getName());
+                                }
                             }
                         } else {
                             out.printf("-lib parameter requires a readable directory\n");
@@ -81,22 +95,15 @@ public class Jar extends Command {
                     }
                 }
             }
-            global.commandLoader = new JarClassLoader(); 
-            global.commandLoader.add(new FileInputStream(jarPath));
-            loader = new LocalLoader(global.commandLoader.getLoadedResources());
-            commands = loader.loadCommands();
-            global.clearCommands();
-            Set<String> className = commands.keySet();
-            Class c;
-            for (String cls : className) {
-                c = commands.get(cls);
-                if (global.isConsoleCommand(c.getSimpleName())) {
-                    throw new ExecutionException("Cannot load the jar. Command %s is a duplicate of a console command, please change the name", c.getSimpleName());
-                } 
-                global.addExecutableCommand(c.getSimpleName(), commands.get(cls));
-                
+            if (global.jarWatcher != null) {
+                global.jarWatcher.close();
+                global.jarWatcher = null;
+            }
+            load(Paths.get(jarPath), full, warm, out);
+            if (watch) {
+                global.jarWatcher = new JarWatcher(Paths.get(jarPath), warm);
+                out.printf("Watching %s for changes\n", jarPath);
             }
-            out.printf("Successfully loaded jar %s\n", jarPath);
         } catch (IOException ex) {
             out.printf("Cannot load jar %s\n", jarPath);
             fatal("", ex);
@@ -105,6 +112,109 @@ public class Jar extends Command {
         }
     }
 
+    /**
+     * Load (or reload) a jar and replace the executable commands at once
+     * @param jar The path of the jar or of a directory of classes
+     * @param full True to redefine all the classes
+     * @param warm True to initialize and warm up the commands before they are
+     * made available
+     * @param out Where to print the changes
+     * @throws IOException If the jar cannot be read
+     * @throws ArgumentDeclarationException If a command is not well defined
+     * @throws ExecutionException If a command has the name of a console command
+     */
+    static void load(Path jar, boolean full, boolean warm, PrintStream out) 
+            throws IOException, ArgumentDeclarationException, ExecutionException {
+        ExecutionService global = ExecutionService.getInstance();
+        Map<String, Class<? extends Command>> commands; 
+        CommandClassLoader loader;
+        long start, indexed;
+
+        synchronized (Jar.class) {
+            CommandClassLoader previous = global.commandLoader;
+            JarIndex index;
+            boolean loaded = false;
+            start = currentTimeMillis();
+            index = JarIndex.open(jar);
+            try {
+                loader = CommandClassLoader.next(index, previous, full);
+                indexed = currentTimeMillis();
+                commands = loader.loadCommands();
+                if (warm) {
+                    warmUp(commands.values(), loader, out);
+                }
+                global.replaceCommands(commands.values(), loader);
+                loaded = true;
+            } finally {
+                if (!loaded) {
+                    index.close();
+                }
+            }
+            loader.closeOlderJars(previous);
+        }
+        out.printf("Successfully loaded jar %s (generation %d)\n", jar, loader.getGeneration());
+        out.printf("Indexed %d classes in %d ms, defined %d classes for %d commands in %d ms\n", 
+                loader.getChangedClasses().size() + loader.getDependentClasses().size() + loader.getReusedCount(), 
+                indexed - start, loader.getDefinedCount(), commands.size(), currentTimeMillis() - indexed);
+        printChanges(out, loader);
+    }
+
+    /*
+     * Initialize the commands in parallel, load the classes they refer to and
+     * call their warm-up hook
+     */
+    private static void warmUp(Collection<Class<? extends Command>> commands, CommandClassLoader loader, PrintStream out) {
+        long start = currentTimeMillis();
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), commands.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Class<? extends Command>> classes = new ArrayList<>(commands);
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        int warmed = 0, preloaded = 0;
+
+        for (final Class<? extends Command> c : classes) {
+            tasks.add(() -> {
+                Thread.currentThread().setContextClassLoader(loader);
+                Class.forName(c.getName(), true, loader);
+                int loaded = loader.preloadReferences(c.getName());
+                c.getDeclaredConstructor().newInstance().warmUp();
+                return loaded;
+            });
+        }
+        try {
+            List<Future<Integer>> results = pool.invokeAll(tasks);
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    preloaded += results.get(i).get();
+                    warmed++;
+                } catch (java.util.concurrent.ExecutionException ex) {
+                    Throwable cause = ex.getCause() instanceof InvocationTargetException ? ex.getCause().getCause() : ex.getCause();
+                    out.printf("Cannot warm up %s, message: %s\n", classes.get(i).getSimpleName(), cause);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        out.printf("Warmed up %d commands (%d classes preloaded) in %d ms\n", warmed, preloaded, currentTimeMillis() - start);
+    }
+
+    private static void printChanges(PrintStream out, CommandClassLoader loader) {
+        out.printf("%d changed, %d dependent, %d removed, %d reused classes\n", 
+                loader.getChangedClasses().size(), 
+                loader.getDependentClasses().size(), 
+                loader.getRemovedClasses().size(), 
+                loader.getReusedCount());
+        if (loader.getReusedCount() > 0) {
+            for (String cls : new TreeSet<>(loader.getChangedClasses())) {
+                out.printf("  changed   %s\n", cls);
+            }
+            for (String cls : new TreeSet<>(loader.getRemovedClasses())) {
+                out.printf("  removed   %s\n", cls);
+            }
+        }
+    }
+
     @Override
     protected String commandDescription() {
         return "Load a jar with commands and a set of libraries";
@@ -120,8 +230,38 @@ public class Jar extends Command {
         this.libraryPaths = libraryPaths;
     }
 
+    @CommandInput(
+            consoleFormat = "-full", 
+            defaultValue = "false", 
+            mandatory = false, 
+            description = "redefine all the classes, even the unchanged ones"
+    )
+    public void setFull(boolean full) {
+        this.full = full;
+    }
+
+    @CommandInput(
+            consoleFormat = "-watch", 
+            defaultValue = "false", 
+            mandatory = false, 
+            description = "reload the jar (or the directory of classes) every time it changes"
+    )
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+
+    @CommandInput(
+            consoleFormat = "-warm", 
+            defaultValue = "false", 
+            mandatory = false, 
+            description = "initialize the commands and run their warm-up hook before making them available"
+    )
+    public void setWarm(boolean warm) {
+        this.warm = warm;
+    }
+
     @PositionalInput(
-            description = "the complete path of the jar to be loaded", 
+            description = "the complete path of the jar (or of a directory of classes) to be loaded", 
             name = "jarPath", 
             position = 1
     )
@@ -129,52 +269,4 @@ public class Jar extends Command {
         this.jarPath = jarPath;
     }
 
-    
-    private class LocalLoader extends ClassLoader {
-        Map<String, byte[]> jarFiles; 
-        
-        public LocalLoader(Map<String, byte[]> jarFiles) {
-            this.jarFiles = jarFiles;
-        }
-
-        public Map<String, Class<? extends Command>> loadCommands() {
-            Map<String, Class<? extends Command>> commands = new HashMap<>(); 
-            byte[] classBytes;
-            String className, classPath; 
-            Class c,sc;
-            LinkedList<String> waiting = new LinkedList<>(jarFiles.keySet());
-            while(!waiting.isEmpty()) {
-                classPath = waiting.poll();
-                className = checkClass(classPath);
-                //System.out.println(className);
-                if (!"".equals(className)) {
-                    try {
-                        classBytes = jarFiles.get(classPath);
-                        c = defineClass( className, classBytes, 0, classBytes.length ); 
-                        sc = c; 
-                        //Navigate up the class hierarchy till we find Command; 
-                        while ((sc = sc.getSuperclass()) != null) {
-                            if (sc == Command.class) {
-                                commands.put(className, c);
-                                break;
-                            }
-                        }
-                    } catch (NoClassDefFoundError ex) {
-                        waiting.add(classPath);
-                    }
-                }
-            }
-            return commands;
-        }
-        
-        private String checkClass(String classPath) {
-            String c = ""; 
-            if (classPath.endsWith(".class")) {
-                c = classPath.replace("/", "."); 
-                c = c.substring(0, c.length() - 6);
-            }
-            return c; 
-        }
-        
-    }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import eu.unitn.disi.db.command.exceptions.ArgumentDeclarationException;
+import eu.unitn.disi.db.command.exceptions.ExecutionException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.stream.Stream;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import org.apache.log4j.Logger;
+import static org.apache.log4j.Logger.getLogger;
+
+/**
+ * Watch a jar (or a directory of classes) and reload it in background when
+ * it changes. Changes are collected till the files are quiet for a while,
+ * so that a jar being written is not loaded halfway.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+final class JarWatcher implements Closeable {
+    private static final long QUIET_PERIOD = 500;
+    private static final Logger logger = getLogger(JarWatcher.class);
+
+    private final Path path;
+    private final boolean directory;
+    private final boolean warm;
+    private final WatchService watcher;
+    private final Thread thread;
+
+    JarWatcher(Path path, boolean warm) throws IOException {
+        this.path = path.toAbsolutePath();
+        this.warm = warm;
+        this.directory = Files.isDirectory(this.path);
+        this.watcher = FileSystems.getDefault().newWatchService();
+        if (directory) {
+            registerAll(this.path);
+        } else {
+            this.path.getParent().register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        }
+        thread = new Thread(this::watch, "jar-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void registerAll(Path dir) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path d : (Iterable<Path>) walk.filter(Files::isDirectory)::iterator) {
+                d.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            }
+        }
+    }
+
+    private void watch() {
+        WatchKey key;
+        boolean changed;
+        try {
+            while (true) {
+                key = watcher.take();
+                changed = process(key);
+                while ((key = watcher.poll(QUIET_PERIOD, MILLISECONDS)) != null) {
+                    changed |= process(key);
+                }
+                if (changed && Files.exists(path)) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            //Watcher closed
+        }
+    }
+
+    /*
+     * Returns true if the events of the key concern the watched files
+     */
+    private boolean process(WatchKey key) {
+        boolean changed = false;
+        Path dir = (Path) key.watchable(), child;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                changed = true;
+                continue;
+            }
+            child = dir.resolve((Path) event.context());
+            if (directory) {
+                changed = true;
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(child)) {
+                    try {
+                        registerAll(child);
+                    } catch (IOException ex) {
+                        logger.warn(String.format("Cannot watch %s, message: %s", child, ex.getMessage()));
+                    }
+                }
+            } else if (child.equals(path)) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void reload() {
+        ExecutionService global = ExecutionService.getInstance();
+        global.out().printf("\n%s changed, reloading\n", path);
+        try {
+            Jar.load(path, false, warm, global.out());
+        } catch (IOException | ArgumentDeclarationException | ExecutionException ex) {
+            global.out().printf("Cannot reload %s (the previous commands are still loaded), message: %s\n", path, ex.getMessage());
+        } catch (RuntimeException | LinkageError ex) {
+            logger.error("Unexpected error reloading the jar", ex);
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        thread.interrupt();
+    }
+}
@@ -17,9 +17,13 @@
  */
 package eu.unitn.disi.db.command.global;
 
+import eu.unitn.disi.db.command.util.OffHeapStore;
+
 /**
  * A loader command is a special Command that is able to store one object into
  * memory. Is is particularly useful if used in conjunction with console.
+ * Huge objects can be stored in an {@link OffHeapStore} to keep them out of 
+ * the garbage collected heap. 
  * @author Davide Mottin <mottin@disi.unitn.eu>
  */
 public abstract class LoaderCommand extends Command {
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import eu.unitn.disi.db.command.CommandInput;
+import eu.unitn.disi.db.command.exceptions.ExecutionException;
+import eu.unitn.disi.db.command.util.ObjectSizer;
+import eu.unitn.disi.db.command.util.OffHeapStore;
+import eu.unitn.disi.db.command.util.SizeAgent;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Show the memory retained by the objects loaded into the console, along with
+ * the classes that use most of it.
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+@ConsoleCommand(name = "mem")
+public class Mem extends Command {
+    private String variable;
+    private int top;
+    private long maxObjects;
+    private int threads;
+
+    @Override
+    protected void execute() throws ExecutionException {
+        ExecutionService global = ExecutionService.getInstance();
+        PrintStream out = global.out();
+        Map<String, Object> objects = new TreeMap<>(global.getDynamicObjects());
+        ObjectSizer sizer = new ObjectSizer(maxObjects > 0 ? maxObjects : ObjectSizer.defaultMaxObjects(), threads);
+        Runtime rt = Runtime.getRuntime();
+        long size, total = 0;
+
+        if (!"".equals(variable)) {
+            if (!objects.containsKey(variable)) {
+                throw new ExecutionException("Variable %s does not exist", variable);
+            }
+            objects = Collections.singletonMap(variable, objects.get(variable));
+        }
+        if (objects.isEmpty()) {
+            out.println("No object loaded");
+            return;
+        }
+        out.printf("Heap: %s used, %s max%s\n", formatBytes(rt.totalMemory() - rt.freeMemory()), formatBytes(rt.maxMemory()), 
+                SizeAgent.getInstrumentation() != null ? " (exact sizes from agent)" : "");
+        out.printf("%-20s %14s  %s\n", "VARIABLE", "RETAINED", "CLASS");
+        for (Map.Entry<String, Object> entry : objects.entrySet()) {
+            size = sizer.sizeOf(entry.getValue());
+            total += size;
+            out.printf("%-20s %14s  %s%s\n", entry.getKey(), formatBytes(size), entry.getValue().getClass().getName(), 
+                    entry.getValue() instanceof OffHeapStore ? " (+" + formatBytes(((OffHeapStore) entry.getValue()).capacity()) + " off-heap)" : "");
+        }
+        out.printf("%-20s %14s  %d objects\n", "TOTAL", formatBytes(total), sizer.getVisitedObjects());
+        if (sizer.isTruncated()) {
+            warn("Stopped after %d objects, sizes are lower bounds (see -limit)", sizer.getVisitedObjects());
+        }
+
+        List<Map.Entry<Class<?>, long[]>> classes = new ArrayList<>(sizer.getHistogram().entrySet());
+        Collections.sort(classes, (Map.Entry<Class<?>, long[]> a, Map.Entry<Class<?>, long[]> b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+        out.printf("\nTop %d classes\n%14s %14s  %s\n", Math.min(top, classes.size()), "INSTANCES", "BYTES", "CLASS");
+        for (int i = 0; i < top && i < classes.size(); i++) {
+            out.printf("%14d %14s  %s\n", classes.get(i).getValue()[0], formatBytes(classes.get(i).getValue()[1]), classes.get(i).getKey().getName());
+        }
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        int exp = (int) (Math.log(bytes) / Math.log(1024));
+        return String.format("%.1f %sB", bytes / Math.pow(1024, exp), "KMGTPE".charAt(exp - 1));
+    }
+
+    @Override
+    protected String commandDescription() {
+        return "Estimate the memory retained by the loaded objects (shared objects are counted once)";
+    }
+
+    @CommandInput(
+        consoleFormat = "-v",
+        defaultValue = "",
+        mandatory = false,
+        description = "the variable to be measured (all the variables if not specified)"
+    )
+    public void setVariable(String variable) {
+        this.variable = variable;
+    }
+
+    @CommandInput(
+        consoleFormat = "-top",
+        defaultValue = "10",
+        mandatory = false,
+        description = "number of classes in the histogram"
+    )
+    public void setTop(int top) {
+        this.top = top;
+    }
+
+    @CommandInput(
+        consoleFormat = "-limit",
+        defaultValue = "0",
+        mandatory = false,
+        description = "maximum number of objects to visit (0 to derive it from the free heap)"
+    )
+    public void setMaxObjects(long maxObjects) {
+        this.maxObjects = maxObjects;
+    }
+
+    @CommandInput(
+        consoleFormat = "-t",
+        defaultValue = "0",
+        mandatory = false,
+        description = "number of threads walking the objects (0 for the number of processors)"
+    )
+    public void setThreads(int threads) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+}
@@ -17,9 +17,12 @@
  */
 package eu.unitn.disi.db.command.global;
 
+import eu.unitn.disi.db.command.CommandInput;
 import eu.unitn.disi.db.command.PositionalInput;
 import eu.unitn.disi.db.command.exceptions.ExecutionException;
-import java.util.Map;
+import eu.unitn.disi.db.command.global.ExecutionService.LoadOption;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Command to load (big) objects into memory and store into variables. 
@@ -29,22 +32,38 @@ import java.util.Map;
 public class Obj extends Command {
     private String variable; 
     private String command; 
+    private boolean background; 
+    private boolean reuse; 
+    private boolean hashContent; 
+    private boolean snapshot; 
     
     @Override
     protected void execute() throws ExecutionException {
         ExecutionService global = ExecutionService.getInstance();
-        Map<String, Object> dynamicObjects = global.getDynamicObjects();
-        if (dynamicObjects.containsKey(variable)) {
+        if (global.isPending(variable)) {
+            //Loads of the same variable are applied in order
+            info("Waiting for the previous load of %s to complete", variable);
+            global.waitForObject(variable);
+        }
+        if (global.hasObject(variable)) {
             warn("Overriding an existing object");
         }
-        Object retval = global.runCommand(ExecutionService.tokenizeCommand(command));
-        if (retval instanceof ExecutionService.CommandError) {
-            throw new ExecutionException("Execution error on calling command: %s", command); 
-        } 
-//        else  if (retval == ExecutionService.CommandError.NOT_EXISTS) {
-//            throw new NullPointerException(String.format("Command does not exists: %s", command)); 
-//        }
-        dynamicObjects.put(variable, retval);
+        List<LoadOption> options = new ArrayList<>();
+        if (reuse) {
+            options.add(LoadOption.REUSE);
+        }
+        if (hashContent) {
+            options.add(LoadOption.HASH_CONTENT);
+        }
+        if (snapshot) {
+            options.add(LoadOption.SNAPSHOT);
+        }
+        if (background) {
+            global.loadObjectInBackground(variable, command, options.toArray(new LoadOption[options.size()]));
+            global.out().printf("Loading %s in background, type 'wait' to wait for it\n", variable);
+        } else {
+            global.loadObject(variable, command, options.toArray(new LoadOption[options.size()]));
+        }
     }
 
     @Override
@@ -69,4 +88,44 @@ public class Obj extends Command {
     public void setCommand(String command) {
         this.command = command;
     }
+
+    @CommandInput(
+        consoleFormat = "-bg", 
+        defaultValue = "false", 
+        mandatory = false, 
+        description = "load the object in background, commands using the variable wait until it is loaded"
+    )
+    public void setBackground(boolean background) {
+        this.background = background;
+    }
+
+    @CommandInput(
+        consoleFormat = "-reuse", 
+        defaultValue = "false", 
+        mandatory = false, 
+        description = "skip the load if an object (or a snapshot) was loaded with the same loader, parameters and input files"
+    )
+    public void setReuse(boolean reuse) {
+        this.reuse = reuse;
+    }
+
+    @CommandInput(
+        consoleFormat = "-hash", 
+        defaultValue = "false", 
+        mandatory = false, 
+        description = "compare the content of the input files instead of their size and modification time"
+    )
+    public void setHashContent(boolean hashContent) {
+        this.hashContent = hashContent;
+    }
+
+    @CommandInput(
+        consoleFormat = "-snapshot", 
+        defaultValue = "false", 
+        mandatory = false, 
+        description = "store a snapshot of the loaded object on disk (only serializable objects)"
+    )
+    public void setSnapshot(boolean snapshot) {
+        this.snapshot = snapshot;
+    }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Disk snapshots of the loaded objects, named after the fingerprint of the
+ * loader that created them. Only serializable objects can be stored. 
+ * Snapshots are kept in the directory given by the system property
+ * {@value #DIRECTORY_PROPERTY} (by default dcmd-snapshots in the temporary
+ * directory). 
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+final class ObjectSnapshots {
+    public static final String DIRECTORY_PROPERTY = "dcmd.snapshot.dir";
+    private static final String SNAPSHOT_EXTENSION = ".ser";
+
+    private ObjectSnapshots() {
+    }
+
+    static Path directory() {
+        String dir = System.getProperty(DIRECTORY_PROPERTY);
+        if (dir == null) {
+            return Paths.get(System.getProperty("java.io.tmpdir"), "dcmd-snapshots");
+        }
+        return Paths.get(dir);
+    }
+
+    /**
+     * Read the snapshot with the input fingerprint
+     * @param fingerprint The fingerprint of the loader
+     * @param loader The class loader used to resolve the classes of the object
+     * @return The object or null if there is no snapshot
+     * @throws IOException If the snapshot cannot be read
+     * @throws ClassNotFoundException If the classes of the object are not available
+     */
+    static Object read(String fingerprint, final ClassLoader loader) throws IOException, ClassNotFoundException {
+        Path file = directory().resolve(fingerprint + SNAPSHOT_EXTENSION);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file));
+                ObjectInputStream objIn = new ObjectInputStream(in) {
+                    @Override
+                    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                        try {
+                            return Class.forName(desc.getName(), false, loader);
+                        } catch (ClassNotFoundException ex) {
+                            return super.resolveClass(desc);
+                        }
+                    }
+                }) {
+            return objIn.readObject();
+        }
+    }
+
+    /**
+     * Write the snapshot of an object, if it is serializable
+     * @param fingerprint The fingerprint of the loader
+     * @param object The loaded object
+     * @return True if the snapshot has been written
+     * @throws IOException If the snapshot cannot be written
+     */
+    static boolean write(String fingerprint, Object object) throws IOException {
+        if (!(object instanceof Serializable)) {
+            return false;
+        }
+        Path dir = directory();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, fingerprint, ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeObject(object);
+        } catch (IOException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+        Files.move(tmp, dir.resolve(fingerprint + SNAPSHOT_EXTENSION), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+}
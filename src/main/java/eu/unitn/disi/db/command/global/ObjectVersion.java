@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A version of a dynamic object. Commands acquire the version they read at
+ * the beginning and release it at the end, when a new version is published
+ * the old one is retired and released as soon as it has no more readers.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+final class ObjectVersion {
+    private final String variable;
+    private final Object value;
+    private final int version;
+    private final AtomicInteger readers;
+    private final AtomicBoolean released;
+    private final Consumer<ObjectVersion> onRelease;
+    private volatile boolean retired;
+
+    ObjectVersion(String variable, Object value, int version, Consumer<ObjectVersion> onRelease) {
+        this.variable = variable;
+        this.value = value;
+        this.version = version;
+        this.onRelease = onRelease;
+        this.readers = new AtomicInteger();
+        this.released = new AtomicBoolean();
+    }
+
+    /**
+     * Register a reader of this version
+     * @return False if the version has been retired in the meanwhile, in this
+     * case the reader must read the current version again
+     */
+    boolean acquire() {
+        readers.incrementAndGet();
+        if (retired) {
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Unregister a reader of this version
+     */
+    void release() {
+        if (readers.decrementAndGet() == 0 && retired) {
+            dispose();
+        }
+    }
+
+    /**
+     * Mark this version as replaced by a newer one
+     */
+    void retire() {
+        retired = true;
+        if (readers.get() == 0) {
+            dispose();
+        }
+    }
+
+    private void dispose() {
+        if (released.compareAndSet(false, true)) {
+            onRelease.accept(this);
+        }
+    }
+
+    String getVariable() {
+        return variable;
+    }
+
+    Object getValue() {
+        return value;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    int getReaders() {
+        return readers.get();
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk cache of the results of the batch commands, so that extending a
+ * sweep runs only the new configurations. An entry is keyed by a hash of the
+ * normalized command, of the content of the jar defining the command and of
+ * the fingerprints of the objects it uses, and stores the output of the
+ * command and its running time. Entries are kept in the directory given by
+ * the system property {@value #DIRECTORY_PROPERTY} (by default dcmd-cache in
+ * the temporary directory); the least recently used are pruned when the
+ * cache exceeds its size.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+final class ResultCache {
+    public static final String DIRECTORY_PROPERTY = "dcmd.cache.dir";
+    private static final String ENTRY_EXTENSION = ".result";
+    private static final int FORMAT = 1;
+
+    /**
+     * A stored result
+     */
+    static final class Entry {
+        private final String command;
+        private final String output;
+        private final long millis;
+        private final long created;
+
+        private Entry(String command, String output, long millis, long created) {
+            this.command = command;
+            this.output = output;
+            this.millis = millis;
+            this.created = created;
+        }
+
+        String getCommand() {
+            return command;
+        }
+
+        String getOutput() {
+            return output;
+        }
+
+        long getMillis() {
+            return millis;
+        }
+
+        long getCreated() {
+            return created;
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long maxAge;
+    private long size;
+
+    private ResultCache(Path directory, long maxBytes, long maxAge) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+    }
+
+    static Path directory() {
+        String dir = System.getProperty(DIRECTORY_PROPERTY);
+        if (dir == null) {
+            return Paths.get(System.getProperty("java.io.tmpdir"), "dcmd-cache");
+        }
+        return Paths.get(dir);
+    }
+
+    /**
+     * Open the cache and prune the entries too old or exceeding the size
+     * @param maxBytes The maximum size of the cache, 0 for no limit
+     * @param maxAge The maximum time since an entry was last used, in
+     * milliseconds, 0 for no limit
+     * @return The cache
+     * @throws IOException If the cache directory cannot be read
+     */
+    static ResultCache open(long maxBytes, long maxAge) throws IOException {
+        ResultCache cache = new ResultCache(directory(), maxBytes, maxAge);
+        Files.createDirectories(cache.directory);
+        cache.prune();
+        return cache;
+    }
+
+    /**
+     * The key of a command: null if the command cannot be cached, i.e., it
+     * does not exist or it uses an object that has no fingerprint
+     * @param command The tokenized command
+     * @return The key as an hexadecimal string
+     */
+    static String key(String[] command) {
+        ExecutionService global = ExecutionService.getInstance();
+        Class<? extends Command> c = command.length > 0 ? global.getCommandClass(command[0]) : null;
+        MessageDigest digest = Fingerprint.newDigest();
+        String code, fingerprint;
+        if (c == null) {
+            return null;
+        }
+        code = codeHash(c, global);
+        if (code == null) {
+            return null;
+        }
+        update(digest, code);
+        update(digest, c.getName());
+        for (int i = 1; i < command.length; i++) {
+            update(digest, command[i]);
+            if (global.hasObject(command[i])) {
+                fingerprint = global.getFingerprint(command[i]);
+                if (fingerprint == null) {
+                    return null;
+                }
+                update(digest, fingerprint);
+            }
+        }
+        return Fingerprint.toHex(digest.digest());
+    }
+
+    /*
+     * The content of the jar for the loaded commands, the size and
+     * modification time of the jar in the class path for the others, the
+     * content of the class file for a directory of classes (the directory
+     * does not change when a class is recompiled)
+     */
+    private static String codeHash(Class<?> c, ExecutionService global) {
+        if (c.getClassLoader() instanceof CommandClassLoader) {
+            return global.commandLoader.getContentHash();
+        }
+        CodeSource source = c.getProtectionDomain().getCodeSource();
+        try {
+            Path location = source != null && source.getLocation() != null ? Paths.get(source.getLocation().toURI()) : null;
+            if (location != null && Files.isDirectory(location)) {
+                Path classFile = location.resolve(c.getName().replace('.', '/') + ".class");
+                MessageDigest digest = Fingerprint.newDigest();
+                Fingerprint.hashFile(digest, classFile);
+                return Fingerprint.toHex(digest.digest());
+            }
+            if (location == null || !Files.isRegularFile(location)) {
+                return null;
+            }
+            return location + ":" + Files.size(location) + ":" + Files.getLastModifiedTime(location).toMillis();
+        } catch (IOException | URISyntaxException | IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    /**
+     * Read an entry, which becomes the most recently used
+     * @param key The key of the command
+     * @return The entry or null if the result is not cached
+     * @throws IOException If the entry cannot be read
+     */
+    Entry get(String key) throws IOException {
+        Path file = directory.resolve(key + ENTRY_EXTENSION);
+        Entry entry;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FORMAT) {
+                return null;
+            }
+            String command = in.readUTF();
+            long millis = in.readLong();
+            long created = in.readLong();
+            byte[] output = new byte[in.readInt()];
+            in.readFully(output);
+            entry = new Entry(command, new String(output, StandardCharsets.UTF_8), millis, created);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        return entry;
+    }
+
+    /**
+     * Store the result of a command, pruning the least recently used entries
+     * if the cache is full
+     * @param key The key of the command
+     * @param command The text of the command
+     * @param output The output of the command
+     * @param millis The running time
+     * @throws IOException If the entry cannot be written
+     */
+    void put(String key, String command, String output, long millis) throws IOException {
+        Path tmp = Files.createTempFile(directory, key, ".tmp");
+        byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(FORMAT);
+            out.writeUTF(command);
+            out.writeLong(millis);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } catch (IOException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+        Path file = directory.resolve(key + ENTRY_EXTENSION);
+        long replaced;
+        synchronized (this) {
+            //An entry is replaced when it has an old format or another batch stored it
+            replaced = Files.exists(file) ? Files.size(file) : 0;
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            size += Files.size(file) - replaced;
+            if (maxBytes > 0 && size > maxBytes) {
+                prune();
+            }
+        }
+    }
+
+    /**
+     * Delete the entries not used for longer than the maximum age, then the least recently
+     * used ones till the cache fits its size (three quarters of it, so that
+     * pruning is not repeated at every new entry)
+     * @return The number of entries deleted
+     * @throws IOException If the cache directory cannot be read
+     */
+    synchronized int prune() throws IOException {
+        final Map<Path, Long> used = new HashMap<>();
+        List<Path> entries;
+        long now = System.currentTimeMillis(), limit = maxBytes - maxBytes / 4, modified;
+        int deleted = 0;
+        size = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + ENTRY_EXTENSION)) {
+            for (Path file : files) {
+                modified = Files.getLastModifiedTime(file).toMillis();
+                if (maxAge > 0 && now - modified > maxAge) {
+                    deleted += Files.deleteIfExists(file) ? 1 : 0;
+                } else {
+                    used.put(file, modified);
+                    size += Files.size(file);
+                }
+            }
+        }
+        if (maxBytes > 0 && size > maxBytes) {
+            entries = new ArrayList<>(used.keySet());
+            entries.sort((Path a, Path b) -> Long.compare(used.get(a), used.get(b)));
+            for (int i = 0; i < entries.size() && size > limit; i++) {
+                size -= Files.size(entries.get(i));
+                deleted += Files.deleteIfExists(entries.get(i)) ? 1 : 0;
+            }
+        }
+        return deleted;
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import eu.unitn.disi.db.command.exceptions.ExecutionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A batch line with parameter sweeps, expanded into the cartesian product
+ * of the values, e.g.:
+ * <pre>
+ * exec (Algo -k {1..100} -eps {0.1,0.01})
+ * </pre>
+ * A sweep is either a list of values <code>{x,y,z}</code> or a range of
+ * integers <code>{from..to}</code> (or <code>{from..to..step}</code>).
+ * The invocations are generated one at a time in a stable order, the last
+ * sweep varying fastest, and can be sampled at random with a seed.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+final class Sweep implements Iterable<String> {
+    private static final Pattern SWEEP = Pattern.compile("\\{([^{}]*(,|\\.\\.)[^{}]*)\\}");
+    private static final int SPARSE_SAMPLE = 1 << 20;
+    private static final long SPARSE_RATIO = 64;
+    private static final Pattern RANGE = Pattern.compile("\\s*(-?\\d+)\\s*\\.\\.\\s*(-?\\d+)\\s*(\\.\\.\\s*(\\d+)\\s*)?");
+
+    /*
+     * The values of a sweep, computed from the index
+     */
+    private interface Values {
+        long size();
+
+        String get(long i);
+    }
+
+    private final List<String> literals;
+    private final List<Values> sweeps;
+    private final long size;
+    private long sample;
+    private Long seed;
+
+    private Sweep(List<String> literals, List<Values> sweeps) throws ExecutionException {
+        long s = 1;
+        this.literals = literals;
+        this.sweeps = sweeps;
+        for (Values v : sweeps) {
+            try {
+                s = Math.multiplyExact(s, v.size());
+            } catch (ArithmeticException ex) {
+                throw new ExecutionException("The sweep has more than %d invocations", Long.MAX_VALUE);
+            }
+        }
+        this.size = s;
+        this.sample = s;
+    }
+
+    /**
+     * True if the line contains at least a sweep
+     * @param line The batch line
+     * @return True if the line has to be expanded
+     */
+    static boolean contains(String line) {
+        return line.indexOf('{') >= 0 && SWEEP.matcher(line).find();
+    }
+
+    /**
+     * Parse the sweeps of a line
+     * @param line The batch line
+     * @return The sweep
+     * @throws ExecutionException If a range is not valid or the product is
+     * too large
+     */
+    static Sweep parse(String line) throws ExecutionException {
+        List<String> literals = new ArrayList<>();
+        List<Values> sweeps = new ArrayList<>();
+        Matcher m = SWEEP.matcher(line), range;
+        int last = 0;
+        while (m.find()) {
+            range = RANGE.matcher(m.group(1));
+            if (range.matches()) {
+                sweeps.add(range(Long.parseLong(range.group(1)), Long.parseLong(range.group(2)),
+                        range.group(4) != null ? Long.parseLong(range.group(4)) : 1, m.group()));
+            } else if (m.group(1).contains(",")) {
+                sweeps.add(list(m.group(1).split(",", -1)));
+            } else {
+                continue;
+            }
+            literals.add(line.substring(last, m.start()));
+            last = m.end();
+        }
+        literals.add(line.substring(last));
+        return new Sweep(literals, sweeps);
+    }
+
+    private static Values range(final long from, final long to, final long step, String text) throws ExecutionException {
+        if (step <= 0) {
+            throw new ExecutionException("The step of the range %s must be positive", text);
+        }
+        final long direction = from <= to ? step : -step;
+        final long size = Math.abs(to - from) / step + 1;
+        return new Values() {
+            @Override
+            public long size() {
+                return size;
+            }
+
+            @Override
+            public String get(long i) {
+                return String.valueOf(from + i * direction);
+            }
+        };
+    }
+
+    private static Values list(final String[] values) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = values[i].trim();
+        }
+        return new Values() {
+            @Override
+            public long size() {
+                return values.length;
+            }
+
+            @Override
+            public String get(long i) {
+                return values[(int) i];
+            }
+        };
+    }
+
+    /**
+     * Run only a random sample of the invocations, still in the stable order
+     * @param count The number of invocations to be run
+     * @param seed The seed of the random choice, the same seed gives the same
+     * sample
+     * @return This sweep
+     */
+    Sweep sample(long count, long seed) {
+        if (count > 0 && count < size) {
+            this.sample = count;
+            this.seed = seed;
+        }
+        return this;
+    }
+
+    /**
+     * The number of invocations in the product
+     * @return The size of the product
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * The invocation at a position of the stable order
+     * @param index The position, from 0 to size - 1
+     * @return The expanded line
+     */
+    String get(long index) {
+        StringBuilder line = new StringBuilder();
+        long[] digits = new long[sweeps.size()];
+        for (int i = sweeps.size() - 1; i >= 0; i--) {
+            digits[i] = index % sweeps.get(i).size();
+            index /= sweeps.get(i).size();
+        }
+        for (int i = 0; i < sweeps.size(); i++) {
+            line.append(literals.get(i)).append(sweeps.get(i).get(digits[i]));
+        }
+        return line.append(literals.get(sweeps.size())).toString();
+    }
+
+    /**
+     * The invocations, one at a time. The iterator tells the position of
+     * the last invocation in the stable order, a stable identifier even
+     * when sampling.
+     * @return The invocations
+     */
+    @Override
+    public Expansion iterator() {
+        return new Expansion();
+    }
+
+    final class Expansion implements Iterator<String> {
+        private final Random random;
+        private final long[] sparse;
+        private long next;
+        private long index = -1;
+        private long selected;
+
+        private Expansion() {
+            random = seed != null ? new Random(seed) : null;
+            sparse = random != null && sample <= SPARSE_SAMPLE && size / sample >= SPARSE_RATIO ? sparseSample(random) : null;
+            next = advance(0);
+        }
+
+        /*
+         * Knuth's selection sampling (algorithm S): the candidate t is chosen
+         * with probability (needed / left), which picks exactly the sample
+         * size in order with constant memory
+         */
+        private long advance(long t) {
+            if (random == null) {
+                return t;
+            }
+            if (sparse != null) {
+                return selected < sparse.length ? sparse[(int) selected] : size;
+            }
+            for (; t < size && selected < sample; t++) {
+                if ((size - t) * random.nextDouble() < sample - selected) {
+                    return t;
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < size && (random == null || selected < sample);
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            index = next;
+            selected++;
+            next = advance(index + 1);
+            return get(index);
+        }
+
+        long index() {
+            return index;
+        }
+    }
+
+    /*
+     * Algorithm S draws a number for every invocation of the product: when
+     * the sample is a tiny fraction, draw the positions and sort them
+     */
+    private long[] sparseSample(Random random) {
+        long[] picked = new long[0], drawn;
+        int distinct;
+        while (picked.length < sample) {
+            drawn = Arrays.copyOf(picked, (int) sample);
+            for (int i = picked.length; i < drawn.length; i++) {
+                drawn[i] = (random.nextLong() >>> 1) % size;
+            }
+            Arrays.sort(drawn);
+            distinct = 0;
+            for (int i = 0; i < drawn.length; i++) {
+                if (i == 0 || drawn[i] != drawn[i - 1]) {
+                    drawn[distinct++] = drawn[i];
+                }
+            }
+            picked = Arrays.copyOf(drawn, distinct);
+        }
+        return picked;
+    }
+}
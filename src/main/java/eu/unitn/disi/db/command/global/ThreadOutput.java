@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * An output stream that collects what a thread writes after {@link #begin()}
+ * in a separate buffer, the other threads write to the underlying stream.
+ * Used to keep the output of commands running in parallel apart.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+final class ThreadOutput extends OutputStream {
+    private final PrintStream delegate;
+    private final ThreadLocal<ByteArrayOutputStream> buffers;
+
+    ThreadOutput(PrintStream delegate) {
+        this.delegate = delegate;
+        this.buffers = new ThreadLocal<>();
+    }
+
+    /**
+     * Start collecting the output of the current thread
+     */
+    void begin() {
+        buffers.set(new ByteArrayOutputStream());
+    }
+
+    /**
+     * Stop collecting the output of the current thread
+     * @return The output collected since {@link #begin()}
+     */
+    String end() {
+        ByteArrayOutputStream buffer = buffers.get();
+        buffers.remove();
+        return buffer == null ? "" : buffer.toString();
+    }
+
+    PrintStream getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ByteArrayOutputStream buffer = buffers.get();
+        if (buffer != null) {
+            buffer.write(b);
+        } else {
+            delegate.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ByteArrayOutputStream buffer = buffers.get();
+        if (buffer != null) {
+            buffer.write(b, off, len);
+        } else {
+            delegate.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (buffers.get() == null) {
+            delegate.flush();
+        }
+    }
+}
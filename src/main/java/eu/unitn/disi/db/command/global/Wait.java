@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.global;
+
+import eu.unitn.disi.db.command.CommandInput;
+import eu.unitn.disi.db.command.exceptions.ExecutionException;
+import static java.lang.System.currentTimeMillis;
+import java.io.PrintStream;
+import java.util.Map;
+
+/**
+ * Wait for objects loaded in background and report the loading progress
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+@ConsoleCommand(name = "wait")
+public class Wait extends Command {
+    private String variable; 
+    private boolean list; 
+    
+    @Override
+    protected void execute() throws ExecutionException {
+        ExecutionService global = ExecutionService.getInstance();
+        PrintStream out = global.out();
+        Map<String, Long> pending = global.getPendingObjects();
+        
+        if (list) {
+            if (pending.isEmpty()) {
+                out.println("No object is being loaded");
+            }
+            for (String var : pending.keySet()) {
+                out.printf("%s\t(%s)\tloading for %ds\n", var, global.getPendingCommand(var), (currentTimeMillis() - pending.get(var)) / 1000);
+            }
+        } else if (!"".equals(variable)) {
+            if (global.waitForObject(variable) == null) {
+                throw new ExecutionException("Variable %s does not exist", variable);
+            }
+            out.printf("Object %s is ready\n", variable);
+        } else {
+            int failed = 0; 
+            for (String var : pending.keySet()) {
+                try {
+                    global.waitForObject(var);
+                    out.printf("Object %s is ready\n", var);
+                } catch (ExecutionException ex) {
+                    error("%s", ex.getMessage());
+                    failed++;
+                }
+            }
+            if (failed > 0) {
+                throw new ExecutionException("%d objects failed to load", failed);
+            }
+        }
+    }
+
+    @Override
+    protected String commandDescription() {
+        return "Wait for the objects loaded in background (all of them if no variable is specified)";
+    }
+
+    @CommandInput(
+        consoleFormat = "-v", 
+        defaultValue = "", 
+        mandatory = false, 
+        description = "the variable to wait for"
+    )
+    public void setVariable(String variable) {
+        this.variable = variable;
+    }
+
+    @CommandInput(
+        consoleFormat = "-l", 
+        defaultValue = "false", 
+        mandatory = false, 
+        description = "list the objects being loaded without waiting"
+    )
+    public void setList(boolean list) {
+        this.list = list;
+    }
+}
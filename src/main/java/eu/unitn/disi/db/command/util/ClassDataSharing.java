@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Creates class data sharing archives: a training run of the program records
+ * the classes it loads, later runs started with -XX:SharedArchiveFile map
+ * them from the archive instead of parsing and verifying them again. Only
+ * the classes in the class path are archived, classes loaded with the jar
+ * command are not. Requires java 10 or later (dynamic archives from 13).
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+public final class ClassDataSharing {
+    private static final int MIN_VERSION = 10;
+    private static final int DYNAMIC_VERSION = 13;
+
+    private ClassDataSharing() {
+    }
+
+    /**
+     * The feature version of the running java (e.g., 8, 11, 17)
+     * @return The version
+     */
+    public static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        return Integer.parseInt(version);
+    }
+
+    public static boolean isSupported() {
+        return javaVersion() >= MIN_VERSION;
+    }
+
+    /**
+     * Run a training process with the same java and class path of this one
+     * and store the classes it loads into an archive
+     * @param archive The archive to be written
+     * @param mainClass The main class of the training run
+     * @param args The arguments of the training run
+     * @return The exit code of the training run
+     * @throws IOException If the process cannot be started
+     * @throws InterruptedException If interrupted while waiting the process
+     */
+    public static int dumpArchive(Path archive, String mainClass, String... args) throws IOException, InterruptedException {
+        int version = javaVersion(), exitCode;
+        if (version < MIN_VERSION) {
+            throw new IOException("Class data sharing archives of application classes require java " + MIN_VERSION + " or later");
+        }
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classPath = System.getProperty("java.class.path");
+        List<String> command = new ArrayList<>();
+        if (archive.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(archive.toAbsolutePath().getParent());
+        }
+        if (version >= DYNAMIC_VERSION) {
+            command.addAll(Arrays.asList(java, "-XX:ArchiveClassesAtExit=" + archive, "-cp", classPath, mainClass));
+            command.addAll(Arrays.asList(args));
+            return run(command);
+        }
+        //Static archive: record the class list, then dump it
+        Path classList = archive.resolveSibling(archive.getFileName() + ".classlist");
+        command.addAll(Arrays.asList(java, "-Xshare:off", "-XX:DumpLoadedClassList=" + classList, "-cp", classPath, mainClass));
+        command.addAll(Arrays.asList(args));
+        exitCode = run(command);
+        if (exitCode != 0) {
+            return exitCode;
+        }
+        command.clear();
+        command.add(java);
+        if (version == MIN_VERSION) {
+            command.add("-XX:+UseAppCDS");
+        }
+        command.addAll(Arrays.asList("-Xshare:dump", "-XX:SharedClassListFile=" + classList, "-XX:SharedArchiveFile=" + archive, "-cp", classPath));
+        return run(command);
+    }
+
+    private static int run(List<String> command) throws IOException, InterruptedException {
+        return new ProcessBuilder(command).inheritIO().start().waitFor();
+    }
+
+    /**
+     * The java options to start a process using an archive
+     * @param archive The archive
+     * @return The options
+     */
+    public static List<String> runtimeOptions(Path archive) {
+        return Arrays.asList("-XX:SharedArchiveFile=" + archive, "-Xshare:auto");
+    }
+}
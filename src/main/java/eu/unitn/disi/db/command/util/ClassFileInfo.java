@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Minimal reader of the class file format that extracts the name, the super
+ * class and the classes referenced by a class without loading it. References
+ * are taken from the class constants and from the type descriptors, hence
+ * they may include some false positives.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+public final class ClassFileInfo {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int ACC_INTERFACE = 0x0200;
+    private static final int ACC_ABSTRACT = 0x0400;
+
+    private final int accessFlags;
+    private final String name;
+    private final String superName;
+    private final String[] interfaces;
+    private final Set<String> referencedClasses;
+
+    private ClassFileInfo(int accessFlags, String name, String superName, String[] interfaces, Set<String> referencedClasses) {
+        this.accessFlags = accessFlags;
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+        this.referencedClasses = referencedClasses;
+    }
+
+    /**
+     * Parse the header and the constant pool of a class
+     * @param bytes The content of the class file
+     * @return The class information
+     * @throws IOException If the bytes are not a valid class file
+     */
+    public static ClassFileInfo parse(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        in.readUnsignedShort(); //minor
+        in.readUnsignedShort(); //major
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        int[] classNames = new int[count];
+        int tag;
+
+        for (int i = 1; i < count; i++) {
+            tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: //Utf8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: //Class
+                    classNames[i] = in.readUnsignedShort();
+                    break;
+                case 8: //String
+                case 16: //MethodType
+                case 19: //Module
+                case 20: //Package
+                    in.skipBytes(2);
+                    break;
+                case 15: //MethodHandle
+                    in.skipBytes(3);
+                    break;
+                case 3: //Integer
+                case 4: //Float
+                case 9: //Fieldref
+                case 10: //Methodref
+                case 11: //InterfaceMethodref
+                case 12: //NameAndType
+                case 17: //Dynamic
+                case 18: //InvokeDynamic
+                    in.skipBytes(4);
+                    break;
+                case 5: //Long
+                case 6: //Double
+                    in.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        int accessFlags = in.readUnsignedShort();
+        String name = className(utf8, classNames, in.readUnsignedShort());
+        String superName = className(utf8, classNames, in.readUnsignedShort());
+        String[] interfaces = new String[in.readUnsignedShort()];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = className(utf8, classNames, in.readUnsignedShort());
+        }
+
+        Set<String> references = new HashSet<>();
+        for (int i = 1; i < count; i++) {
+            if (classNames[i] != 0) {
+                addReference(references, utf8[classNames[i]]);
+            } else if (utf8[i] != null) {
+                addDescriptorReferences(references, utf8[i]);
+            }
+        }
+        references.remove(name);
+        return new ClassFileInfo(accessFlags, name, superName, interfaces, Collections.unmodifiableSet(references));
+    }
+
+    private static String className(String[] utf8, int[] classNames, int index) {
+        return index == 0 ? null : utf8[classNames[index]].replace('/', '.');
+    }
+
+    private static void addReference(Set<String> references, String internalName) {
+        if (internalName.startsWith("[")) {
+            addDescriptorReferences(references, internalName);
+        } else {
+            references.add(internalName.replace('/', '.'));
+        }
+    }
+
+    /*
+     * Collect the Lname; patterns in descriptors and signatures
+     */
+    private static void addDescriptorReferences(Set<String> references, String descriptor) {
+        int start = descriptor.indexOf('L'), end;
+        char c;
+        while (start >= 0) {
+            for (end = start + 1; end < descriptor.length(); end++) {
+                c = descriptor.charAt(end);
+                if (c == ';' || c == '<' || !(Character.isJavaIdentifierPart(c) || c == '/')) {
+                    break;
+                }
+            }
+            if (end < descriptor.length() && end > start + 1 && (descriptor.charAt(end) == ';' || descriptor.charAt(end) == '<')) {
+                references.add(descriptor.substring(start + 1, end).replace('/', '.'));
+            }
+            start = descriptor.indexOf('L', end);
+        }
+    }
+
+    /**
+     * The binary name of the class (e.g., java.lang.String)
+     * @return The name of the class
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The binary name of the super class
+     * @return The super class name or null for java.lang.Object
+     */
+    public String getSuperName() {
+        return superName;
+    }
+
+    public int getAccessFlags() {
+        return accessFlags;
+    }
+
+    /**
+     * True if the class is abstract or an interface (cannot be instantiated)
+     * @return True if the class is abstract
+     */
+    public boolean isAbstract() {
+        return (accessFlags & (ACC_ABSTRACT | ACC_INTERFACE)) != 0;
+    }
+
+    public String[] getInterfaces() {
+        return interfaces;
+    }
+
+    /**
+     * The binary names of the classes this class may depend on
+     * @return The referenced classes
+     */
+    public Set<String> getReferencedClasses() {
+        return referencedClasses;
+    }
+}
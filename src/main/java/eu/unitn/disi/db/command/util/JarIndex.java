@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Index of the entries of a jar, read from its central directory. The
+ * content of an entry is read only when requested, so the jar does not
+ * occupy the heap. Each entry has a hash (CRC and size) that identifies its
+ * content without reading it. An exploded jar (a directory of classes) is 
+ * indexed as well, in this case the hash requires reading the file. A closed
+ * index opens the jar again when an entry is read, so that the jar of an old
+ * generation does not hold a file descriptor while nothing reads it.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+public final class JarIndex implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 13;
+
+    private final Path path;
+    private final boolean directory;
+    private ZipFile zip; //null for directories and closed jars
+
+    private JarIndex(Path path, ZipFile zip) {
+        this.path = path;
+        this.directory = zip == null;
+        this.zip = zip;
+    }
+
+    /**
+     * Open a jar and read its central directory
+     * @param path The path of the jar or of a directory of classes
+     * @return The index of the jar
+     * @throws IOException If the file is not a readable jar
+     */
+    public static JarIndex open(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            return new JarIndex(path, null);
+        }
+        return new JarIndex(path, new ZipFile(path.toFile()));
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /*
+     * The jar, opened again if the index has been closed
+     */
+    private synchronized ZipFile zip() throws IOException {
+        if (zip == null) {
+            zip = new ZipFile(path.toFile());
+        }
+        return zip;
+    }
+
+    /**
+     * The names of the files in the jar (directories excluded)
+     * @return The entry names, as paths separated by '/'
+     * @throws IOException If the directory cannot be listed
+     */
+    public List<String> getEntryNames() throws IOException {
+        if (directory) {
+            List<String> files = new ArrayList<>();
+            try (Stream<Path> walk = Files.walk(path)) {
+                walk.filter(Files::isRegularFile).forEach(file -> files.add(entryName(file)));
+            }
+            return files;
+        }
+        ZipFile jar = zip();
+        List<String> names = new ArrayList<>(jar.size());
+        Enumeration<? extends ZipEntry> entries = jar.entries();
+        ZipEntry entry;
+        while (entries.hasMoreElements()) {
+            entry = entries.nextElement();
+            if (!entry.isDirectory()) {
+                names.add(entry.getName());
+            }
+        }
+        return names;
+    }
+
+    public boolean contains(String name) {
+        return directory ? Files.isRegularFile(file(name)) : entry(name) != null;
+    }
+
+    private ZipEntry entry(String name) {
+        try {
+            return zip().getEntry(name);
+        } catch (IOException | IllegalStateException ex) {
+            return null;
+        }
+    }
+
+    private Path file(String name) {
+        return path.resolve(name.replace('/', File.separatorChar));
+    }
+
+    private String entryName(Path file) {
+        return path.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * The hash of the content of an entry, from the central directory
+     * @param name The name of the entry
+     * @return The hash or null if the entry does not exist
+     */
+    public String getHash(String name) {
+        if (directory) {
+            try {
+                return contains(name) ? hash(Files.readAllBytes(file(name))) : null;
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+        ZipEntry entry = entry(name);
+        return entry == null ? null : hash(entry);
+    }
+
+    private static String hash(ZipEntry entry) {
+        return Long.toHexString(entry.getCrc()) + ":" + Long.toHexString(entry.getSize());
+    }
+
+    private static String hash(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return Long.toHexString(crc.getValue()) + ":" + Long.toHexString(content.length);
+    }
+
+    /**
+     * Read the content of an entry
+     * @param name The name of the entry
+     * @return The content or null if the entry does not exist
+     * @throws IOException If the entry cannot be read
+     */
+    public byte[] read(String name) throws IOException {
+        if (directory) {
+            return contains(name) ? Files.readAllBytes(file(name)) : null;
+        }
+        ZipEntry entry = zip().getEntry(name);
+        return entry == null ? null : read(entry);
+    }
+
+    /**
+     * Read the content of an entry if it has the expected hash, the content is
+     * checked against the CRC, so a jar changed on disk is detected.
+     * @param name The name of the entry
+     * @param hash The expected hash
+     * @return The content or null if the entry is missing or has changed
+     */
+    public byte[] read(String name, String hash) {
+        if (directory) {
+            try {
+                byte[] content = read(name);
+                return content != null && hash(content).equals(hash) ? content : null;
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+        ZipEntry entry = entry(name);
+        if (entry == null || !hash(entry).equals(hash)) {
+            return null;
+        }
+        try {
+            byte[] content = read(entry);
+            CRC32 crc = new CRC32();
+            crc.update(content, 0, content.length);
+            return crc.getValue() == entry.getCrc() ? content : null;
+        } catch (IOException | IllegalStateException ex) {
+            return null;
+        }
+    }
+
+    private byte[] read(ZipEntry entry) throws IOException {
+        long size = entry.getSize();
+        ByteArrayOutputStream content = new ByteArrayOutputStream(size > 0 && size < Integer.MAX_VALUE ? (int) size : BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        try (InputStream in = zip().getInputStream(entry)) {
+            while ((read = in.read(buffer)) > 0) {
+                content.write(buffer, 0, read);
+            }
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * Open a stream on an entry
+     * @param name The name of the entry
+     * @return The stream or null if the entry does not exist
+     * @throws IOException If the entry cannot be read
+     */
+    public InputStream openStream(String name) throws IOException {
+        if (directory) {
+            return contains(name) ? Files.newInputStream(file(name)) : null;
+        }
+        ZipFile jar = zip();
+        ZipEntry entry = jar.getEntry(name);
+        return entry == null ? null : jar.getInputStream(entry);
+    }
+
+    /**
+     * A jar url pointing to an entry
+     * @param name The name of the entry
+     * @return The url or null if the entry does not exist
+     */
+    public URL getURL(String name) {
+        if (!contains(name)) {
+            return null;
+        }
+        try {
+            if (directory) {
+                return file(name).toUri().toURL();
+            }
+            return new URL("jar:" + path.toUri() + "!/" + name);
+        } catch (MalformedURLException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Close the jar, the streams still open on its entries are closed too
+     * @throws IOException If the jar cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (zip != null) {
+            zip.close();
+            zip = null;
+        }
+    }
+}
@@ -19,19 +19,17 @@ package eu.unitn.disi.db.command.util;
 
 import java.io.File;
 import java.io.IOException;
-import static java.lang.ClassLoader.getSystemClassLoader;
-import java.lang.reflect.Method;
 import java.net.URL;
-import java.net.URLClassLoader;
-import static org.apache.log4j.Logger.getLogger;
 
 /**
- * Jar loader used to load commands within jars dynamically
+ * Jar loader used to load the libraries of the commands dynamically. The 
+ * libraries are added to a shared {@link LibraryClassLoader}, the parent of 
+ * all the command class loaders
  * @author Davide Mottin <mottin@disi.unitn.eu>
  */
 public class JarLoader {    
     
-    private static final Class[] parameters = new Class[] {URL.class};
+    private static final LibraryClassLoader LIBRARIES = new LibraryClassLoader(JarLoader.class.getClassLoader());
     
     private JarLoader() {
     }
@@ -50,16 +48,14 @@ public class JarLoader {
     
     public static void addURL(URL u) throws IOException
     {
-        URLClassLoader sysloader = (URLClassLoader) getSystemClassLoader();
-        Class sysclass = URLClassLoader.class;
-
-        try {
-            Method method = sysclass.getDeclaredMethod("addURL", parameters);
-            method.setAccessible(true);
-            method.invoke(sysloader, new Object[] {u});
-        } catch (Throwable t) {
-            getLogger(JarLoader.class.getClass()).fatal("Cannot load the jar", t);
-            throw new IOException("Error, could not add URL to system classloader");
-        }
+        LIBRARIES.addLibrary(u);
     }    
+
+    /**
+     * The shared library layer
+     * @return The class loader of the libraries
+     */
+    public static LibraryClassLoader getLibraryLoader() {
+        return LIBRARIES;
+    }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.util;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+
+/**
+ * The layer of the libraries loaded with the commands. It is shared by all
+ * the command jars and never discarded, so that the library classes are
+ * loaded (and compiled) once. The loader is parallel capable: classes with
+ * different names are loaded concurrently.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+public final class LibraryClassLoader extends URLClassLoader {
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    LibraryClassLoader(ClassLoader parent) {
+        super(new URL[0], parent);
+    }
+
+    /**
+     * Add a library to the layer, if not already there
+     * @param url The url of the jar or the directory
+     * @return True if the library has been added
+     */
+    public synchronized boolean addLibrary(URL url) {
+        if (Arrays.asList(getURLs()).contains(url)) {
+            return false;
+        }
+        addURL(url);
+        return true;
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.util;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Estimate the deep size of object graphs. The graph is walked in parallel
+ * on a fork-join pool, each object is counted once using an identity based
+ * visited set, thus objects shared by different roots are accounted to the
+ * first root that reaches them.
+ *
+ * Fields are read through sun.misc.Unsafe when available (this works also
+ * on JDK classes that are not open to reflection), the shallow size of an
+ * object is taken from the {@link SizeAgent} if loaded, otherwise it is
+ * computed from the field layout. The visited set grows with the number of
+ * objects, therefore the walk stops after a maximum number of objects and
+ * the sizes become lower bounds (see {@link #isTruncated()}).
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+public class ObjectSizer {
+    private static final int SPLIT_THRESHOLD = 1024;
+    private static final int ALIGNMENT = 8;
+    private static final int SEGMENTS = 64;
+
+    private static final Object UNSAFE;
+    private static final MethodHandle GET_OBJECT;
+    private static final Method OBJECT_FIELD_OFFSET;
+    private static final int REFERENCE_SIZE;
+    private static final int OBJECT_HEADER;
+    private static final int ARRAY_HEADER;
+
+    private final Map<Class<?>, ClassLayout> layouts;
+    private final Map<Class<?>, long[]> histogram;
+    private final IdentitySet visited;
+    private final LongAdder totalSize;
+    private final AtomicLong visitedObjects;
+    private final long maxObjects;
+    private final int parallelism;
+    private volatile boolean truncated;
+
+    /*
+     * Used to compute the size of the object header
+     */
+    private static class Probe {
+        byte field;
+    }
+
+    static {
+        Object unsafe = null;
+        MethodHandle getObject = null;
+        Method objectFieldOffset = null;
+        int referenceSize = 4, objectHeader = 12, arrayHeader = 16;
+        if ("32".equals(System.getProperty("sun.arch.data.model"))) {
+            objectHeader = 8;
+            arrayHeader = 12;
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            objectFieldOffset = unsafeClass.getMethod("objectFieldOffset", Field.class);
+            getObject = MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "getObject", MethodType.methodType(Object.class, Object.class, long.class))
+                    .bindTo(unsafe);
+            referenceSize = (Integer) unsafeClass.getMethod("arrayIndexScale", Class.class).invoke(unsafe, Object[].class);
+            arrayHeader = (Integer) unsafeClass.getMethod("arrayBaseOffset", Class.class).invoke(unsafe, Object[].class);
+            objectHeader = (int) (long) (Long) objectFieldOffset.invoke(unsafe, Probe.class.getDeclaredField("field"));
+        } catch (Exception | LinkageError ex) {
+            unsafe = null;
+            getObject = null;
+            objectFieldOffset = null;
+        }
+        UNSAFE = unsafe;
+        GET_OBJECT = getObject;
+        OBJECT_FIELD_OFFSET = objectFieldOffset;
+        REFERENCE_SIZE = referenceSize;
+        OBJECT_HEADER = objectHeader;
+        ARRAY_HEADER = arrayHeader;
+    }
+
+    /**
+     * @param maxObjects The maximum number of objects to be visited
+     * @param parallelism The number of threads walking the graph
+     */
+    public ObjectSizer(long maxObjects, int parallelism) {
+        this.maxObjects = maxObjects;
+        this.parallelism = parallelism;
+        this.layouts = new ConcurrentHashMap<>();
+        this.histogram = new ConcurrentHashMap<>();
+        this.visited = new IdentitySet();
+        this.totalSize = new LongAdder();
+        this.visitedObjects = new AtomicLong();
+    }
+
+    /**
+     * The number of objects that can be visited with the free heap, each
+     * visited object costs about 16 bytes in the visited set
+     * @return A safe limit on the number of visited objects
+     */
+    public static long defaultMaxObjects() {
+        Runtime rt = Runtime.getRuntime();
+        long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        return Math.max(1000, free / 2 / 16);
+    }
+
+    /**
+     * Compute the size of the objects reachable from the root that have not
+     * been counted yet
+     * @param root The root of the graph
+     * @return The size in bytes
+     */
+    public long sizeOf(Object root) {
+        if (root == null || !walkable(root) || !markVisited(root)) {
+            return 0;
+        }
+        long before = totalSize.sum();
+        ArrayDeque<Object> stack = new ArrayDeque<>();
+        stack.push(root);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new WalkTask(stack));
+        } finally {
+            pool.shutdown();
+        }
+        return totalSize.sum() - before;
+    }
+
+    /**
+     * True if the walk stopped because it reached the maximum number of
+     * objects, the sizes are then lower bounds
+     * @return True if the walk is incomplete
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public long getVisitedObjects() {
+        return visitedObjects.get();
+    }
+
+    /**
+     * The number of instances and the total shallow size for each class
+     * @return A map from classes to pairs (count, bytes)
+     */
+    public Map<Class<?>, long[]> getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Returns the shallow size of an object
+     * @param o The object
+     * @return The size in bytes
+     */
+    public static long shallowSizeOf(Object o) {
+        Instrumentation inst = SizeAgent.getInstrumentation();
+        if (inst != null) {
+            return inst.getObjectSize(o);
+        }
+        Class<?> c = o.getClass();
+        if (c.isArray()) {
+            return align(ARRAY_HEADER + (long) Array.getLength(o) * sizeOfType(c.getComponentType()));
+        }
+        return new ClassLayout(c).shallowSize;
+    }
+
+    private long shallowSize(Object o, ClassLayout layout) {
+        Instrumentation inst = SizeAgent.getInstrumentation();
+        if (inst != null) {
+            return inst.getObjectSize(o);
+        }
+        if (layout.elementSize > 0) {
+            return align(ARRAY_HEADER + (long) Array.getLength(o) * layout.elementSize);
+        }
+        return layout.shallowSize;
+    }
+
+    private static long align(long size) {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static int sizeOfType(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return REFERENCE_SIZE;
+        } else if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    /*
+     * Class metadata, class loaders and threads are not part of the objects
+     */
+    private static boolean walkable(Object o) {
+        return !(o instanceof Class || o instanceof ClassLoader || o instanceof Thread);
+    }
+
+    private boolean markVisited(Object o) {
+        if (truncated) {
+            return false;
+        }
+        if (visited.add(o)) {
+            if (visitedObjects.incrementAndGet() >= maxObjects) {
+                truncated = true;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private ClassLayout layout(Class<?> c) {
+        ClassLayout layout = layouts.get(c);
+        if (layout == null) {
+            layout = new ClassLayout(c);
+            layouts.put(c, layout);
+        }
+        return layout;
+    }
+
+    private final class WalkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final ArrayDeque<Object> stack;
+
+        WalkTask(ArrayDeque<Object> stack) {
+            this.stack = stack;
+        }
+
+        @Override
+        protected void compute() {
+            List<WalkTask> forked = new ArrayList<>();
+            Map<Class<?>, long[]> local = new HashMap<>();
+            ArrayDeque<Object> half;
+            Object o;
+            ClassLayout layout;
+            long size;
+            long[] entry;
+
+            while ((o = stack.poll()) != null) {
+                layout = layout(o.getClass());
+                size = shallowSize(o, layout);
+                totalSize.add(size);
+                entry = local.get(o.getClass());
+                if (entry == null) {
+                    entry = new long[2];
+                    local.put(o.getClass(), entry);
+                }
+                entry[0]++;
+                entry[1] += size;
+                if (!truncated) {
+                    if (layout.referenceArray) {
+                        for (Object child : (Object[]) o) {
+                            push(child);
+                        }
+                    } else {
+                        layout.pushReferences(o, this);
+                    }
+                }
+                if (stack.size() > SPLIT_THRESHOLD) {
+                    half = new ArrayDeque<>();
+                    for (int i = stack.size() / 2; i > 0; i--) {
+                        half.push(stack.pollLast());
+                    }
+                    WalkTask task = new WalkTask(half);
+                    task.fork();
+                    forked.add(task);
+                }
+            }
+            for (Map.Entry<Class<?>, long[]> e : local.entrySet()) {
+                long[] global = histogram.computeIfAbsent(e.getKey(), (Class<?> c) -> new long[2]);
+                synchronized (global) {
+                    global[0] += e.getValue()[0];
+                    global[1] += e.getValue()[1];
+                }
+            }
+            for (WalkTask task : forked) {
+                task.join();
+            }
+        }
+
+        void push(Object child) {
+            if (child != null && walkable(child) && markVisited(child)) {
+                stack.push(child);
+            }
+        }
+    }
+
+    /*
+     * Size and reference fields of a class
+     */
+    private static final class ClassLayout {
+        final long shallowSize;
+        final int elementSize;
+        final boolean referenceArray;
+        final long[] offsets;
+        final Field[] fields;
+
+        ClassLayout(Class<?> c) {
+            List<Field> references = new ArrayList<>();
+            long end = OBJECT_HEADER, sum = OBJECT_HEADER, offset;
+            boolean offsetsAvailable = OBJECT_FIELD_OFFSET != null;
+
+            if (c.isArray()) {
+                elementSize = sizeOfType(c.getComponentType());
+                referenceArray = !c.getComponentType().isPrimitive();
+                shallowSize = 0;
+                offsets = new long[0];
+                fields = new Field[0];
+                return;
+            }
+            elementSize = 0;
+            referenceArray = false;
+            for (Class<?> k = c; k != null; k = k.getSuperclass()) {
+                for (Field f : k.getDeclaredFields()) {
+                    if (Modifier.isStatic(f.getModifiers())) {
+                        continue;
+                    }
+                    sum += sizeOfType(f.getType());
+                    if (offsetsAvailable) {
+                        try {
+                            offset = (Long) OBJECT_FIELD_OFFSET.invoke(UNSAFE, f);
+                            end = Math.max(end, offset + sizeOfType(f.getType()));
+                        } catch (Exception ex) {
+                            //Records and hidden classes
+                            offsetsAvailable = false;
+                        }
+                    }
+                    //Referents are reachable only weakly
+                    if (!f.getType().isPrimitive() && k != java.lang.ref.Reference.class) {
+                        references.add(f);
+                    }
+                }
+            }
+            shallowSize = align(offsetsAvailable ? end : sum);
+            if (offsetsAvailable) {
+                offsets = new long[references.size()];
+                for (int i = 0; i < offsets.length; i++) {
+                    try {
+                        offsets[i] = (Long) OBJECT_FIELD_OFFSET.invoke(UNSAFE, references.get(i));
+                    } catch (Exception ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+                fields = null;
+            } else {
+                List<Field> accessible = new ArrayList<>();
+                for (Field f : references) {
+                    try {
+                        f.setAccessible(true);
+                        accessible.add(f);
+                    } catch (RuntimeException ex) {
+                        //Not open to reflection, the field is not followed
+                    }
+                }
+                offsets = null;
+                fields = accessible.toArray(new Field[accessible.size()]);
+            }
+        }
+
+        void pushReferences(Object o, WalkTask task) {
+            try {
+                if (offsets != null) {
+                    for (long offset : offsets) {
+                        task.push((Object) GET_OBJECT.invokeExact(o, offset));
+                    }
+                } else {
+                    for (Field f : fields) {
+                        task.push(f.get(o));
+                    }
+                }
+            } catch (Throwable ex) {
+                throw new IllegalStateException("Cannot read the fields of " + o.getClass().getName(), ex);
+            }
+        }
+    }
+
+    /*
+     * A set of object identities, split into segments to reduce contention,
+     * each segment is an open addressing table storing only the keys.
+     */
+    private static final class IdentitySet {
+        private final Segment[] segments;
+
+        IdentitySet() {
+            segments = new Segment[SEGMENTS];
+            for (int i = 0; i < SEGMENTS; i++) {
+                segments[i] = new Segment();
+            }
+        }
+
+        boolean add(Object o) {
+            int h = hash(o);
+            return segments[h & (SEGMENTS - 1)].add(o, h >>> 6);
+        }
+
+        static int hash(Object o) {
+            int h = System.identityHashCode(o);
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            return h;
+        }
+    }
+
+    private static final class Segment {
+        private Object[] table = new Object[1024];
+        private int size;
+
+        synchronized boolean add(Object o, int h) {
+            int mask = table.length - 1;
+            int i = h & mask;
+            Object current;
+            while ((current = table[i]) != null) {
+                if (current == o) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = o;
+            if (++size * 2 > table.length) {
+                resize();
+            }
+            return true;
+        }
+
+        private void resize() {
+            Object[] old = table;
+            table = new Object[old.length * 2];
+            int mask = table.length - 1;
+            int i;
+            for (Object o : old) {
+                if (o != null) {
+                    i = (IdentitySet.hash(o) >>> 6) & mask;
+                    while (table[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    table[i] = o;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A (possibly huge) buffer stored outside the java heap, either in direct
+ * memory or in a memory mapped file. The buffer is split into chunks of
+ * 1GB so that it can grow beyond 2GB, typed views allow to read and write
+ * longs, ints and doubles using a long index.
+ *
+ * Since the garbage collector sees only a handful of objects, loaders can
+ * store big structures (e.g., graph adjacency lists) in a store without
+ * increasing the GC pauses. The class is part of the console, therefore the
+ * stores are not affected by the reload of the command jars.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+public class OffHeapStore implements Closeable {
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final ByteBuffer[] chunks;
+    private final long capacity;
+    private final boolean readOnly;
+    private volatile boolean closed;
+
+    private OffHeapStore(ByteBuffer[] chunks, long capacity, boolean readOnly) {
+        this.chunks = chunks;
+        this.capacity = capacity;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Allocate a new store in direct memory (see -XX:MaxDirectMemorySize)
+     * @param capacity The size of the store in bytes
+     * @return The allocated store, initialized with zeros
+     */
+    public static OffHeapStore allocate(long capacity) {
+        ByteBuffer[] chunks = new ByteBuffer[numChunks(capacity)];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(chunkSize(capacity, i)).order(ByteOrder.nativeOrder());
+        }
+        return new OffHeapStore(chunks, capacity, false);
+    }
+
+    /**
+     * Map a file into memory, the pages are loaded lazily by the operating
+     * system and shared with any other process mapping the same file.
+     * @param file The file to be mapped
+     * @param capacity The size of the store in bytes, the file is extended if
+     * it is smaller and the store is writable
+     * @param readOnly True if the store cannot be modified
+     * @return The mapped store
+     * @throws IOException If the file cannot be opened or mapped
+     */
+    public static OffHeapStore map(Path file, long capacity, boolean readOnly) throws IOException {
+        ByteBuffer[] chunks = new ByteBuffer[numChunks(capacity)];
+        FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+        try (FileChannel channel = readOnly
+                ? FileChannel.open(file, StandardOpenOption.READ)
+                : FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            if (readOnly && channel.size() < capacity) {
+                throw new IOException(String.format("File %s is smaller than %d bytes", file, capacity));
+            }
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = channel.map(mode, i * CHUNK_SIZE, chunkSize(capacity, i)).order(ByteOrder.nativeOrder());
+            }
+        }
+        return new OffHeapStore(chunks, capacity, readOnly);
+    }
+
+    /**
+     * Map a whole file into memory in read-only mode
+     * @param file The file to be mapped
+     * @return The mapped store
+     * @throws IOException If the file cannot be opened or mapped
+     */
+    public static OffHeapStore map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return map(file, channel.size(), true);
+        }
+    }
+
+    private static int numChunks(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("The capacity of a store cannot be negative");
+        }
+        return (int) ((capacity + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+    }
+
+    private static int chunkSize(long capacity, int chunk) {
+        return (int) Math.min(CHUNK_SIZE, capacity - chunk * CHUNK_SIZE);
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    private ByteBuffer chunk(long offset) {
+        ByteBuffer chunk = closed ? null : chunks[(int) (offset >>> CHUNK_SHIFT)];
+        if (chunk == null) {
+            throw new IllegalStateException("The store has been closed");
+        }
+        return chunk;
+    }
+
+    public byte getByte(long offset) {
+        return chunk(offset).get((int) (offset & CHUNK_MASK));
+    }
+
+    public void putByte(long offset, byte value) {
+        chunk(offset).put((int) (offset & CHUNK_MASK), value);
+    }
+
+    /**
+     * Flush the changes to the underlying file, if the store is mapped
+     */
+    public void force() {
+        for (ByteBuffer chunk : chunks) {
+            if (chunk instanceof MappedByteBuffer && !readOnly) {
+                ((MappedByteBuffer) chunk).force();
+            }
+        }
+    }
+
+    /**
+     * Close the store, any further access fails. The memory is not released
+     * explicitly, since a command may still be reading the store (e.g., an
+     * object version retired while in use): unmapping it would crash the JVM.
+     * The garbage collector releases it once no thread refers to the chunks.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = null;
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * View the whole store as an array of longs
+     * @return The long array
+     */
+    public LongArray asLongArray() {
+        return new LongArray(0, capacity / Long.BYTES);
+    }
+
+    /**
+     * View a portion of the store as an array of longs
+     * @param offset The starting byte, must be a multiple of 8
+     * @param length The number of longs
+     * @return The long array
+     */
+    public LongArray asLongArray(long offset, long length) {
+        checkView(offset, length, Long.BYTES);
+        return new LongArray(offset, length);
+    }
+
+    public IntArray asIntArray() {
+        return new IntArray(0, capacity / Integer.BYTES);
+    }
+
+    /**
+     * View a portion of the store as an array of ints
+     * @param offset The starting byte, must be a multiple of 4
+     * @param length The number of ints
+     * @return The int array
+     */
+    public IntArray asIntArray(long offset, long length) {
+        checkView(offset, length, Integer.BYTES);
+        return new IntArray(offset, length);
+    }
+
+    public DoubleArray asDoubleArray() {
+        return new DoubleArray(0, capacity / Double.BYTES);
+    }
+
+    /**
+     * View a portion of the store as an array of doubles
+     * @param offset The starting byte, must be a multiple of 8
+     * @param length The number of doubles
+     * @return The double array
+     */
+    public DoubleArray asDoubleArray(long offset, long length) {
+        checkView(offset, length, Double.BYTES);
+        return new DoubleArray(offset, length);
+    }
+
+    /*
+     * Aligned views never cross a chunk boundary
+     */
+    private void checkView(long offset, long length, int elementSize) {
+        if (offset % elementSize != 0) {
+            throw new IllegalArgumentException(String.format("Offset %d is not aligned to %d bytes", offset, elementSize));
+        }
+        if (offset < 0 || length < 0 || offset + length * elementSize > capacity) {
+            throw new IndexOutOfBoundsException(String.format("View [%d, %d) exceeds the store capacity %d", offset, offset + length * elementSize, capacity));
+        }
+    }
+
+    private static void checkIndex(long index, long length) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(String.format("Index %d out of the view length %d", index, length));
+        }
+    }
+
+    public final class LongArray {
+        private final long offset;
+        private final long length;
+
+        private LongArray(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public long get(long index) {
+            checkIndex(index, length);
+            long pos = offset + (index << 3);
+            return chunk(pos).getLong((int) (pos & CHUNK_MASK));
+        }
+
+        public void set(long index, long value) {
+            checkIndex(index, length);
+            long pos = offset + (index << 3);
+            chunk(pos).putLong((int) (pos & CHUNK_MASK), value);
+        }
+
+        public long length() {
+            return length;
+        }
+    }
+
+    public final class IntArray {
+        private final long offset;
+        private final long length;
+
+        private IntArray(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int get(long index) {
+            checkIndex(index, length);
+            long pos = offset + (index << 2);
+            return chunk(pos).getInt((int) (pos & CHUNK_MASK));
+        }
+
+        public void set(long index, int value) {
+            checkIndex(index, length);
+            long pos = offset + (index << 2);
+            chunk(pos).putInt((int) (pos & CHUNK_MASK), value);
+        }
+
+        public long length() {
+            return length;
+        }
+    }
+
+    public final class DoubleArray {
+        private final long offset;
+        private final long length;
+
+        private DoubleArray(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public double get(long index) {
+            checkIndex(index, length);
+            long pos = offset + (index << 3);
+            return chunk(pos).getDouble((int) (pos & CHUNK_MASK));
+        }
+
+        public void set(long index, double value) {
+            checkIndex(index, length);
+            long pos = offset + (index << 3);
+            chunk(pos).putDouble((int) (pos & CHUNK_MASK), value);
+        }
+
+        public long length() {
+            return length;
+        }
+    }
+}
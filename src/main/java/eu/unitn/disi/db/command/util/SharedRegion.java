@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.util;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A named, memory mapped region that can be shared among different processes
+ * on the same host. A loader creates the region, fills its store and
+ * publishes it, any other console can then attach the region read-only
+ * without copying, since all the processes share the same page cache.
+ *
+ * Regions are files in the directory given by the system property
+ * {@value #DIRECTORY_PROPERTY} (by default dcmd-shared in the temporary
+ * directory). A region is written into a temporary file and renamed when
+ * published, thus processes that attached a previous version keep reading a
+ * consistent copy.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+public final class SharedRegion {
+    public static final String DIRECTORY_PROPERTY = "dcmd.shared.dir";
+    private static final String REGION_EXTENSION = ".region";
+
+    private final String name;
+    private final Path tmpFile;
+    private final OffHeapStore store;
+    private boolean published;
+
+    private SharedRegion(String name, Path tmpFile, OffHeapStore store) {
+        this.name = name;
+        this.tmpFile = tmpFile;
+        this.store = store;
+    }
+
+    /**
+     * The directory containing the shared regions
+     * @return The region directory
+     */
+    public static Path directory() {
+        String dir = System.getProperty(DIRECTORY_PROPERTY);
+        if (dir == null) {
+            return Paths.get(System.getProperty("java.io.tmpdir"), "dcmd-shared");
+        }
+        return Paths.get(dir);
+    }
+
+    private static Path regionFile(String name) {
+        if (!name.matches("[A-Za-z0-9_.\\-]+")) {
+            throw new IllegalArgumentException(String.format("Invalid region name '%s', use only letters, digits, '_', '.' and '-'", name));
+        }
+        return directory().resolve(name + REGION_EXTENSION);
+    }
+
+    /**
+     * Create a new writable region, which is not visible to the other
+     * processes until it is published
+     * @param name The name of the region
+     * @param capacity The size of the region in bytes
+     * @return The region to be filled
+     * @throws IOException If the region file cannot be created
+     */
+    public static SharedRegion create(String name, long capacity) throws IOException {
+        Path file = regionFile(name);
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), name, ".tmp");
+        return new SharedRegion(name, tmp, OffHeapStore.map(tmp, capacity, false));
+    }
+
+    /**
+     * Attach a published region in read-only mode
+     * @param name The name of the region
+     * @return The mapped store
+     * @throws IOException If the region does not exist or cannot be mapped
+     */
+    public static OffHeapStore attach(String name) throws IOException {
+        Path file = regionFile(name);
+        if (!Files.exists(file)) {
+            throw new IOException(String.format("Region %s does not exist in %s, available regions are %s", name, directory(), list()));
+        }
+        return OffHeapStore.map(file);
+    }
+
+    public static boolean exists(String name) {
+        return Files.exists(regionFile(name));
+    }
+
+    /**
+     * List the published regions
+     * @return The names of the regions
+     * @throws IOException If the region directory cannot be read
+     */
+    public static List<String> list() throws IOException {
+        List<String> regions = new ArrayList<>();
+        Path dir = directory();
+        if (Files.isDirectory(dir)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + REGION_EXTENSION)) {
+                for (Path file : files) {
+                    String fileName = file.getFileName().toString();
+                    regions.add(fileName.substring(0, fileName.length() - REGION_EXTENSION.length()));
+                }
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Remove a region, processes that attached it keep their mapping
+     * @param name The name of the region
+     * @return True if the region existed
+     * @throws IOException If the region cannot be removed
+     */
+    public static boolean remove(String name) throws IOException {
+        return Files.deleteIfExists(regionFile(name));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The store to be filled before publishing the region, it is closed when
+     * the region is published
+     * @return The writable store
+     */
+    public OffHeapStore getStore() {
+        return store;
+    }
+
+    /**
+     * Flush the store and make the region visible to the other processes,
+     * replacing any previous region with the same name. The writable store
+     * is closed, so that a published region cannot change anymore.
+     * @return The region attached in read-only mode
+     * @throws IOException If the region cannot be published
+     */
+    public OffHeapStore publish() throws IOException {
+        if (!published) {
+            store.force();
+            Files.move(tmpFile, regionFile(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            published = true;
+            store.close();
+        }
+        return attach(name);
+    }
+
+    /**
+     * Discard a region that has not been published
+     * @throws IOException If the temporary file cannot be deleted
+     */
+    public void discard() throws IOException {
+        if (!published) {
+            store.close();
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2014 Davide Mottin <mottin@disi.unitn.eu>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package eu.unitn.disi.db.command.util;
+
+import java.lang.instrument.Instrumentation;
+
+/**
+ * Optional java agent that gives {@link ObjectSizer} the exact shallow size
+ * of the objects. Start the console with -javaagent:[jarname] to enable it.
+ *
+ * @author Davide Mottin <mottin@disi.unitn.eu>
+ */
+public final class SizeAgent {
+    private static volatile Instrumentation instrumentation;
+
+    private SizeAgent() {
+    }
+
+    public static void premain(String args, Instrumentation inst) {
+        instrumentation = inst;
+    }
+
+    public static void agentmain(String args, Instrumentation inst) {
+        instrumentation = inst;
+    }
+
+    /**
+     * Returns the instrumentation if the agent has been loaded
+     * @return The instrumentation or null
+     */
+    public static Instrumentation getInstrumentation() {
+        return instrumentation;
+    }
+}
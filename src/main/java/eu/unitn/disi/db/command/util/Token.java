@@ -35,6 +35,21 @@ public class Token implements CharSequence
         this.column = column;
     }
 
+    public Type type()
+    {
+        return type;
+    }
+
+    public int line()
+    {
+        return line;
+    }
+
+    public int column()
+    {
+        return column;
+    }
+
     @Override
     public String toString()
     {
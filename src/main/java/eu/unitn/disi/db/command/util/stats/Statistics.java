@@ -299,6 +299,231 @@ public class Statistics implements Iterable<List<String>> {
         return median;
     }
 
+    /**
+     *
+     * @param column
+     * @return the sample standard deviation of the values in that column
+     */
+    public Double getStandardDeviation(String column) {
+        if (!numericValues.containsKey(column)) {
+            throw new IllegalArgumentException("Columns " + column + " does not exists or is not of Numeric type");
+        }
+
+        LinkedList<BigDecimal> values = numericValues.get(column);
+        int size = values.size();
+
+        if (size < 2) {
+            return 0.0;
+        }
+
+        BigDecimal mean = new BigDecimal(getAverage(column), mc);
+        BigDecimal squares = new BigDecimal("0", mc);
+
+        for (BigDecimal value : values) {
+            BigDecimal diff = value.subtract(mean, mc);
+            squares = squares.add(diff.multiply(diff, mc), mc);
+        }
+
+        return Math.sqrt(squares.divide(new BigDecimal(size - 1), mc).doubleValue());
+    }
+
+    /**
+     * Percentile with linear interpolation between the closest ranks
+     *
+     * @param column
+     * @param percentile between 0 and 100
+     * @return the percentile of the values in that column
+     */
+    public Double getPercentile(String column, double percentile) {
+        if (!numericValues.containsKey(column)) {
+            throw new IllegalArgumentException("Columns " + column + " does not exists or is not of Numeric type");
+        }
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile " + percentile + " is not between 0 and 100");
+        }
+
+        ArrayList<BigDecimal> values = new ArrayList<>(numericValues.get(column));
+
+        if (values.isEmpty()) {
+            return null;
+        }
+
+        Collections.sort(values);
+        double rank = percentile / 100 * (values.size() - 1);
+        int lower = (int) Math.floor(rank);
+        int upper = (int) Math.ceil(rank);
+        double low = values.get(lower).doubleValue();
+
+        return low + (rank - lower) * (values.get(upper).doubleValue() - low);
+    }
+
+    /**
+     * Half width of the confidence interval of the mean, assuming the values
+     * are independent samples (Student's t distribution)
+     *
+     * @param column
+     * @param confidence the confidence level, e.g., 0.95
+     * @return the half width, the interval is average +/- half width
+     */
+    public Double getConfidenceInterval(String column, double confidence) {
+        if (!numericValues.containsKey(column)) {
+            throw new IllegalArgumentException("Columns " + column + " does not exists or is not of Numeric type");
+        }
+        if (confidence <= 0 || confidence >= 1) {
+            throw new IllegalArgumentException("Confidence " + confidence + " is not between 0 and 1");
+        }
+
+        int size = numericValues.get(column).size();
+
+        if (size < 2) {
+            return Double.NaN;
+        }
+
+        return studentQuantile(1 - (1 - confidence) / 2, size - 1) * getStandardDeviation(column) / Math.sqrt(size);
+    }
+
+    /**
+     * Quantile of the Student's t distribution, inverting its distribution
+     * function by Newton's method (with bisection when a step leaves the
+     * bracket of the root), closed forms for 1 and 2 degrees of freedom
+     */
+    private static double studentQuantile(double p, int df) {
+        double lo = 0, hi, t, f;
+        if (p < 0.5) {
+            return -studentQuantile(1 - p, df);
+        }
+        if (df == 1) {
+            return Math.tan(Math.PI * (p - 0.5));
+        }
+        if (df == 2) {
+            return (2 * p - 1) / Math.sqrt(2 * p * (1 - p));
+        }
+        t = Math.max(cornishFisher(p, df), 0);
+        hi = Math.max(1, 2 * t);
+        while (studentDistribution(hi, df) < p) {
+            lo = hi;
+            hi *= 2;
+        }
+        for (int i = 0; i < 100 && hi - lo > 1e-12 * hi; i++) {
+            f = studentDistribution(t, df) - p;
+            if (f == 0) {
+                break;
+            } else if (f < 0) {
+                lo = t;
+            } else {
+                hi = t;
+            }
+            t -= f / studentDensity(t, df);
+            if (t <= lo || t >= hi) {
+                t = (lo + hi) / 2;
+            }
+        }
+        return t;
+    }
+
+    /*
+     * Cornish-Fisher expansion of the quantile (Abramowitz and Stegun
+     * 26.7.5), the starting point of the inversion
+     */
+    private static double cornishFisher(double p, int df) {
+        double z = normalQuantile(p);
+        double z3 = z * z * z, z5 = z3 * z * z, z7 = z5 * z * z, z9 = z7 * z * z;
+        double g1 = (z3 + z) / 4;
+        double g2 = (5 * z5 + 16 * z3 + 3 * z) / 96;
+        double g3 = (3 * z7 + 19 * z5 + 17 * z3 - 15 * z) / 384;
+        double g4 = (79 * z9 + 776 * z7 + 1482 * z5 - 1920 * z3 - 945 * z) / 92160;
+        return z + g1 / df + g2 / Math.pow(df, 2) + g3 / Math.pow(df, 3) + g4 / Math.pow(df, 4);
+    }
+
+    /*
+     * P(T <= t) for t >= 0, through the regularized incomplete beta function
+     */
+    private static double studentDistribution(double t, int df) {
+        return 1 - 0.5 * incompleteBeta(df / (df + t * t), df / 2.0, 0.5);
+    }
+
+    private static double studentDensity(double t, int df) {
+        return Math.exp(logGamma((df + 1) / 2.0) - logGamma(df / 2.0) - 0.5 * Math.log(df * Math.PI) 
+                - (df + 1) / 2.0 * Math.log1p(t * t / df));
+    }
+
+    /*
+     * Regularized incomplete beta function I_x(a, b), continued fraction
+     * evaluated with the modified Lentz's method (Numerical Recipes 6.4)
+     */
+    private static double incompleteBeta(double x, double a, double b) {
+        if (x <= 0 || x >= 1) {
+            return x <= 0 ? 0 : 1;
+        }
+        if (x > (a + 1) / (a + b + 2)) {
+            return 1 - incompleteBeta(1 - x, b, a);
+        }
+        final double tiny = 1e-300;
+        double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x) + b * Math.log1p(-x)) / a;
+        double c = 1, d = 1 - (a + b) * x / (a + 1), f, numerator, delta;
+        d = 1 / (Math.abs(d) < tiny ? tiny : d);
+        f = d;
+        for (int m = 1; m <= 10000; m++) {
+            //Even and odd terms of the fraction
+            for (int odd = 0; odd < 2; odd++) {
+                numerator = odd == 0 
+                        ? m * (b - m) * x / ((a + 2 * m - 1) * (a + 2 * m)) 
+                        : -(a + m) * (a + b + m) * x / ((a + 2 * m) * (a + 2 * m + 1));
+                d = 1 + numerator * d;
+                d = 1 / (Math.abs(d) < tiny ? tiny : d);
+                c = 1 + numerator / c;
+                c = Math.abs(c) < tiny ? tiny : c;
+                delta = c * d;
+                f *= delta;
+                if (odd == 1 && Math.abs(delta - 1) < 1e-15) {
+                    return front * f;
+                }
+            }
+        }
+        return front * f;
+    }
+
+    /*
+     * Logarithm of the gamma function, Lanczos approximation (g = 7)
+     */
+    private static double logGamma(double x) {
+        final double[] lanczos = {0.99999999999980993, 676.5203681218851, -1259.1392167224028, 771.32342877765313, 
+            -176.61502916214059, 12.507343278686905, -0.13857109526572012, 9.9843695780195716e-6, 1.5056327351493116e-7};
+        double sum = lanczos[0], t;
+        if (x < 0.5) {
+            return Math.log(Math.PI / Math.abs(Math.sin(Math.PI * x))) - logGamma(1 - x);
+        }
+        x -= 1;
+        for (int i = 1; i < lanczos.length; i++) {
+            sum += lanczos[i] / (x + i);
+        }
+        t = x + 7.5;
+        return 0.5 * Math.log(2 * Math.PI) + (x + 0.5) * Math.log(t) - t + Math.log(sum);
+    }
+
+    /**
+     * Quantile of the standard normal distribution (Acklam's rational
+     * approximation, relative error below 1.2e-9)
+     */
+    private static double normalQuantile(double p) {
+        final double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02, 1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+        final double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02, 6.680131188771972e+01, -1.328068155288572e+01};
+        final double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00, -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+        final double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00, 3.754408661907416e+00};
+        double q, r;
+
+        if (p < 0.02425) {
+            q = Math.sqrt(-2 * Math.log(p));
+            return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5]) / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+        }
+        if (p > 1 - 0.02425) {
+            return -normalQuantile(1 - p);
+        }
+        q = p - 0.5;
+        r = q * q;
+        return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q / (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+    }
+
     /**
      * Get all the names of all the columns, textual fields first, then numeric
      * fields